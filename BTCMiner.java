@@ -29,6 +29,9 @@ import java.net.*;
 import java.security.*;
 import java.text.*;
 import java.util.zip.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 import ch.ntb.usb.*;
 
@@ -41,30 +44,49 @@ import ztex.*;
 class ParameterException extends Exception {
     public final static String helpMsg = new String (
 		"Parameters:\n"+
-		"    -host <string>    Host URL (default: http://127.0.0.1:8332)\n" +
+		"    -host <string>    Host URL (default: http://127.0.0.1:8332), stratum+tcp://<host>:<port> for stratum pools\n" +
 		"    -u <string>       RPC User name\n" + 
 		"    -p <string>       RPC Password\n" + 
 		"    -b <url> <user name> <password> \n" + 
 		"                      URL, user name and password of a backup server. Can be specified multiple times. \n"+
+		"    -lb <weights>     Distribute the work over all pools, comma separated list of the pool weights in the order of\n" +
+		"                      -host and -b (default: 1), 0 means failover only. The weights are reduced on the fly if a pool\n" +
+		"                      is slow or rejects shares.\n" +
 		"    -lp <url> <user name> <password> \n" + 
 		"                      URL, user name and password of a long polling server (determined automatically by default) \n"+
 		"    -l <log file>     Log file (default: BTCMiner.log) \n" +
 		"    -l2 <log file>    Secondary log file, logs everything but statistics \n" +
 		"    -bl <log file>    Log of submitted blocks file \n" +
+		"    -blb <log file>   Binary log of submitted blocks, about a third of the size of the -bl log \n" +
+		"    -pr <log file>    Print a binary log or a trace and exit \n" +
+		"    -tr <file>        Trace file: records work, poll results, frequency changes, temperatures and submit results\n" +
+		"    -replay <file>    Replay a trace (cluster mode): the recorded FPGA's and a local pool serving the recorded work\n" +
+		"                      are simulated, e.g. for testing the frequency control\n" +
+		"    -rs <number>      Replay speed factor, divides the poll intervals (default: 1)\n" +
+		"    -fp <file>        Frequency profile store: the learned error rates are saved and restored on restart \n" +
 		"    -c <file name>    Secondary command input file, can be a named pipe \n" + 
-		"    -m s|t|p|c        Set single mode, test mode, programming mode or cluster mode\n"+
+		"    -m s|t|p|c|b      Set single mode, test mode, programming mode, cluster mode or benchmark mode\n"+
 		"                      Single mode: runs BTCMiner on a single board (default mode)\n" +
 		"                      Test mode: tests a board using some test data\n" +
 		"                      Programming mode: programs device with the given firmware\n" +
 		"                      Cluster mode: runs BTCMiner on all programmed boards\n" +
+		"                      Benchmark mode: measures the host side hashing and parsing routines\n" +
 		"    -ep0              Always use slow EP0 for Bitstream transfer\n" +
 		"    -oh <number>      Overheat threshold: if the hash rate drops by that factor (but at least two frequency steps)\n"+
-		"                      the overheat shutdown is triggered (default: 0.04, recommended: 0 to 0.08)\n"+
+		"                      the frequency is reduced by two further steps (default: 0.04, recommended: 0 to 0.08)\n"+
 		"    -t <number>       Temperature limit (in C, default 70C)\n" +
+		"                      The frequency is reduced when the limit is approached, the FPGA is shut down 5C above the limit\n" +
 		"    -ps <string>      Select devices with the given serial number,\n" +
 		"                      in cluster mode: select devices which serial number starts with the given string\n" +
 		"    -e <number>       Maximum error rate\n"+
+		"    -fc legacy|model  Frequency controller: step by step (legacy) or fitted error curve (model, default)\n"+
 		"    -tc               Enable target check (disabled by default)\n" + 
+		"    -wq <number>      Number of work units fetched in advance per FPGA, 0 disables prefetching (default: 1)\n" +
+		"    -rn <number>      Maximum ntime increment if the pool allows ntime rolling, 0 disables ntime rolling (default: 60)\n" +
+		"    -bs <number>      Maximum number of work units or shares per JSON-RPC batch request, 1 disables batch requests (default: 16)\n" +
+		"    -sim <number>     Use <number> simulated FPGA's instead of USB devices (single and cluster mode)\n" +
+		"    -simlat <number>  USB latency of simulated FPGA's in ms (default: 1)\n" +
+		"    -mp <port>        Export metrics in the Prometheus format at http://<host>:<port>/metrics (single and cluster mode)\n" +
 		"    -v                Be verbose\n" +
 		"    -h                This help\n" +
 		"Parameters in single mode, test mode and programming mode\n"+
@@ -73,6 +95,7 @@ class ParameterException extends Exception {
 		"    -i                Print bus info\n" +
 		"Parameters in cluster mode\n"+
 		"    -n <number>       Maximum amount of devices per thread (default: 10)\n"+
+		"    -tpd              One thread per FPGA, virtual threads are used if supported by the JVM (Java 21 or newer)\n"+
 		"Parameters in programming mode\n"+
 		"    -pt <string>      Program devices of the given type\n" + 
 		"                      If neither -ps nor -ps is given, only unconfigured devices are programmed\n" +
@@ -104,6 +127,18 @@ class FirmwareException extends Exception {
     }
 }    
 
+/* *****************************************************************************
+   ******* MaybeSentException **************************************************
+   ***************************************************************************** */   
+// a request failed after it may have been received by the server, i.e. it must
+// not be repeated if this has side effects, e.g. share submissions
+class MaybeSentException extends IOException {
+    private static final long serialVersionUID = 1L;
+    public MaybeSentException(String msg ) {
+	super( msg );
+    }
+}    
+
 
 // *****************************************************************************
 // ******* MsgObj *************************************************************
@@ -149,8 +184,11 @@ class NewBlockMonitor extends Thread implements MsgObj {
 	if ( n ) {
 	    newCount += 1;
 	    submitOld = true;
+	    Metrics.counter( "new_blocks", "source", "getwork" ).inc();
 	    if ( newCount > 0 )
 		msg("New block detected by block monitor");
+	    WorkQueue.flushAll();
+	    PollLoop.wakeupAll();
 	}
 	    
 	return n;
@@ -172,22 +210,22 @@ class NewBlockMonitor extends Thread implements MsgObj {
 	    if ( BTCMiner.longPollURL!=null && enableLP && t>enableLPTime) {
 		try {
 //		    msg("info: LP");
-		    String req = BTCMiner.bitcoinRequest(this, BTCMiner.longPollURL, BTCMiner.longPollUser, BTCMiner.longPollPassw, "getwork", "");
-		    BTCMiner.hexStrToData(BTCMiner.jsonParse(req, "data"), dataBuf);
-		    submitOld = true;
-		    String so = null;
-		    try {
-			so = BTCMiner.jsonParse(req, "submitold");
-			if ( so.equalsIgnoreCase("false") )
-			    submitOld = false;
-		    }
-		    catch ( Exception e ) {
-		    }
+		    long t0 = System.nanoTime();
+		    HttpResponse req = BTCMiner.bitcoinHttpRequest(this, BTCMiner.longPollURL, BTCMiner.longPollUser, BTCMiner.longPollPassw, "getwork", "");
+		    Metrics.histogram( "longpoll_time", "url", BTCMiner.longPollURL ).recordSince( t0 );
+		    JsonRpcResponse j = req.reader().read( new JsonRpcResponse(dataBuf, null) );
+		    if ( ! j.hasData ) 
+			throw new ParserException( "No or invalid data in long polling response" + ( j.error != null ? ": " + j.error : "" ) );
+		    String so = j.submitOld;
+		    submitOld = so == null || ! so.equalsIgnoreCase("false");
 		    
 		    for ( int i=0; i<32; i++ ) {
 			prevBlock[i] = dataBuf[i+4];
 		    }
 		    newCount += 1;
+		    Metrics.counter( "new_blocks", "source", "longpoll" ).inc();
+		    WorkQueue.flushAll();
+		    PollLoop.wakeupAll();
 		    msg( "New block detected by long polling" + ( so == null ? "" : " (submitold = " + so + ")" ) );
 		}
 		catch ( MalformedURLException e ) {
@@ -251,25 +289,62 @@ class NewBlockMonitor extends Thread implements MsgObj {
 // *****************************************************************************
 // ******* BTCMinerThread ******************************************************
 // *****************************************************************************
-class BTCMinerThread extends Thread {
+// Runs the poll loop of a group of miners. If BTCMinerCluster.threadPerDevice is
+// set the group consists of one miner and a virtual thread is used if supported 
+// by the JVM. Locks (no monitors) are used on the poll path because blocking
+// within a monitor pins virtual threads to their carrier thread.
+class BTCMinerThread implements Runnable {
     private Vector<BTCMiner> miners = new Vector<BTCMiner>();
+    private ReentrantLock lock = new ReentrantLock();	// guards miners and pollLoop
     private String busName;
-    private PollLoop pollLoop = null;
-    
+    private volatile PollLoop pollLoop = null;
+    private Thread thread = null;
+
 // ******* constructor *********************************************************
     public BTCMinerThread( String bn ) {
 	busName = bn;
     }
 
+// ******* start ***************************************************************
+    private void start () {
+	thread = null;
+	if ( BTCMinerCluster.threadPerDevice ) {
+	    // Thread.ofVirtual().name(...).unstarted(this), requires Java 21
+	    try {
+		Class<?> bc = Class.forName("java.lang.Thread$Builder");
+		Object b = Thread.class.getMethod("ofVirtual").invoke(null);
+		b = bc.getMethod("name", String.class).invoke(b, "miner " + busName);
+		thread = (Thread) bc.getMethod("unstarted", Runnable.class).invoke(b, this);
+	    }
+	    catch ( Exception e ) {
+		thread = null;
+	    }
+	}
+	if ( thread == null ) 
+	    thread = new Thread( this, "miner " + busName );
+	thread.start();
+    }
+
 // ******* add *****************************************************************
     public void add ( BTCMiner m ) {
-	synchronized ( miners ) {
+	boolean st = false;
+	lock.lock();
+	try {
 	    miners.add ( m );
 	    m.name = busName + ": " + m.name;
+	    // the poll loop is created here in order to ensure that only one thread is started
+	    if ( pollLoop==null ) {
+		pollLoop = new PollLoop(miners, busName, lock);
+		st = true;
+	    }
+	}
+	finally {
+	    lock.unlock();
 	}
 
-	if ( pollLoop==null ) {
-	    BTCMiner.printMsg2("Starting mining thread for bus " + busName);
+	if ( st ) {
+	    if ( ! BTCMinerCluster.threadPerDevice ) 
+		BTCMiner.printMsg2("Starting mining thread for bus " + busName);
 	    start();
 	}
     }
@@ -287,7 +362,7 @@ class BTCMinerThread extends Thread {
 // ******* find ****************************************************************
     public BTCMiner find ( int dn ) {
 	for (int i=0; i<miners.size(); i++ ) {
-	    if ( (miners.elementAt(i).ztex().dev().dev().getDevnum() == dn) )
+	    if ( (miners.elementAt(i).device().devNum() == dn) )
 		return miners.elementAt(i);
 	}
 	return null;
@@ -305,33 +380,49 @@ class BTCMinerThread extends Thread {
 
 // ******* run *****************************************************************
     public void run () {
-	pollLoop = new PollLoop(miners);
-	pollLoop.run();
-	pollLoop = null;
+	while ( true ) {
+	    pollLoop.run();
+	    lock.lock();	// a miner may have been added after the poll loop terminated
+	    try {
+		if ( miners.size() == 0 ) {
+		    pollLoop = null;
+		    return;
+		}
+	    }
+	    finally {
+		lock.unlock();
+	    }
+	}
     }
 
 // ******* printInfo ************************************************************
     public void printInfo ( ) {
-	if ( pollLoop != null )
-	    pollLoop.printInfo( busName );
+	PollLoop pl = pollLoop;
+	if ( pl != null )
+	    pl.printInfo( busName );
     }
 
 // ******* disconnect ***********************************************************
     public int disconnect ( String ss, Vector<BTCMiner> allMiners ) {
 	int i=0;
-	synchronized ( miners ) {
+	lock.lock();
+	try {
 	    for (int j=miners.size()-1; j>=0; j-- ) {
 		BTCMiner m = miners.elementAt(j);
-		if ( ss.equals(m.ztex().dev().snString()) ) {
+		if ( ss.equals(m.device().snString()) ) {
 		    BTCMiner.printMsg("Disconnecting "+m.name);
 		    if ( allMiners != null )
 			allMiners.removeElement(m);
 		    m.suspend();
+		    m.close();
 		    miners.removeElementAt(j);
 		    i+=1;
 		}
 	    }
 	}
+	finally {
+	    lock.unlock();
+	}
 	return i;
     }
 
@@ -343,6 +434,11 @@ class BTCMinerThread extends Thread {
 // *****************************************************************************
 class BTCMinerCluster {
     public static int maxDevicesPerThread = 10;
+    public static boolean threadPerDevice = false;	// one (virtual) thread per FPGA
+    public static int simDevices = 0;		// number of simulated FPGA's, 0 means USB devices
+
+    private int simCount = 0;
+    private int replayCount = 0;
 
     private Vector<BTCMinerThread> threads = new Vector<BTCMinerThread>();
     private Vector<BTCMiner> allMiners = new Vector<BTCMiner>();
@@ -352,7 +448,8 @@ class BTCMinerCluster {
 	final long infoInterval = 300000;
     
 	scan( verbose );
-	
+	MetricsServer.start( allMiners );
+
 	long nextInfoTime = new Date().getTime() + 60000;
 	
 	boolean quit = false;
@@ -379,6 +476,12 @@ class BTCMinerCluster {
 		}
 		for ( int i=0; i<threads.size(); i++ )
 		    threads.elementAt(i).printInfo();
+		BTCMiner.printMsg2( "USB transfer time: " + Metrics.snapshot("usb_time").info() );
+		SubmitQueue.printInfo();
+		HttpTransport.printInfo();
+		WorkSource.printInfo();
+		ZtexMinerDevice.printInfo();
+		TraceReplay.printInfo();
 		
 		BTCMiner.printMsg2("Total hash rate: " + String.format("%.1f",  e ) + " MH/s");
 		BTCMiner.printMsg2("Total submitted hash rate: " + String.format("%.1f",  d ) + " MH/s");
@@ -412,6 +515,12 @@ class BTCMinerCluster {
 				
 		String cmd = sb.toString();
 		
+		if ( TraceReplay.finished() ) {
+		    BTCMiner.printMsg2( "End of trace reached" );
+		    TraceReplay.printInfo();
+		    cmd = "q";
+		}
+		
 		if (cmd.length()<1) {}
 		else if (cmd.equalsIgnoreCase("q") || cmd.equalsIgnoreCase("quit") ) {
 		    for (int i=allMiners.size()-1; i>=0; i--) {
@@ -490,15 +599,16 @@ class BTCMinerCluster {
 // ******* add *****************************************************************
     private void add ( BTCMiner m ) {
 	int i=0, j=0;
-	String bn = m.ztex().dev().dev().getBus().getDirname() + "-" + j;
+	int max = threadPerDevice ? 1 : maxDevicesPerThread;
+	String bn = m.device().busName() + "-" + j;
 	while ( i<threads.size() ) {
 	    BTCMinerThread t = threads.elementAt(i);
 	    if ( bn.equalsIgnoreCase(threads.elementAt(i).busName()) ) {
-		if ( t.size() < maxDevicesPerThread )
+		if ( t.size() < max )
 		    break;
 		j++;
 		i=0;
-		bn = m.ztex().dev().dev().getBus().getDirname() + "-" + j;
+		bn = m.device().busName() + "-" + j;
 	    }
 	    else {
 		i++;
@@ -516,7 +626,7 @@ class BTCMinerCluster {
 	String bn = dev.dev().getBus().getDirname();
 	for ( int i=threads.size()-1; i>=0; i-- )  {
 	    BTCMiner m = threads.elementAt(i).find(dn);
-	    if (  m != null && bn.equals(m.ztex().dev().dev().getBus().getDirname()) )
+	    if (  m != null && bn.equals(m.device().busName()) )
 		return m;
 	}
 	return null;
@@ -561,10 +671,39 @@ class BTCMinerCluster {
 
 	PollLoop.scanMode = true;
 
-	ZtexScanBus1 bus = new ZtexScanBus1( ZtexDevice1.ztexVendorId, ZtexDevice1.ztexProductId, false, false, 1,  null, 10, 0, 1, 0 );
-	int k = 0;
+	Vector<ReplayMinerDevice> rv = TraceReplay.devices();
+	ZtexScanBus1 bus = simDevices > 0 || rv.size() > 0 ? null : new ZtexScanBus1( ZtexDevice1.ztexVendorId, ZtexDevice1.ztexProductId, false, false, 1,  null, 10, 0, 1, 0 );
+	int k = simDevices + rv.size();
 	int l = 0;
-	for (int i=0; i<bus.numberOfDevices(); i++ ) {
+	for ( ; simCount<simDevices; simCount++ ) {
+	    try {
+		BTCMiner m = new BTCMiner ( new SimulatedMinerDevice(), verbose );
+		l += 1;
+		m.clusterMode = true;
+		add( m );
+		BTCMiner.printMsg(m.name + ": added");
+		insertIntoAllMiners(m);
+	    }
+	    catch ( Exception e ) {
+		BTCMiner.printMsg( "Error: "+e.getLocalizedMessage() );
+	    }
+	}
+
+	for ( ; replayCount<rv.size(); replayCount++ ) {
+	    try {
+		BTCMiner m = new BTCMiner ( rv.elementAt(replayCount), verbose );
+		l += 1;
+		m.clusterMode = true;
+		add( m );
+		BTCMiner.printMsg(m.name + ": added");
+		insertIntoAllMiners(m);
+	    }
+	    catch ( Exception e ) {
+		BTCMiner.printMsg( "Error: "+e.getLocalizedMessage() );
+	    }
+	}
+
+	for (int i=0; bus!=null && i<bus.numberOfDevices(); i++ ) {
 	    try {
 		ZtexDevice1 dev = bus.device(i);
 		if ( dev.productId(0)!=10 || dev.productId(2)>1 )
@@ -614,7 +753,7 @@ class BTCMinerCluster {
 	BTCMiner.printMsg2("  Total  \t: " + allMiners.size() + " miners\n");
 	BTCMiner.printMsg2("\nDisconnect all devices or enter `q' for exit. Enter `h' for help.\n");
 	
-	BTCMiner.connectionEffort = 1.0 + Math.exp( (1.0 - Math.sqrt(Math.min(allMiners.size(),maxDevicesPerThread)*allMiners.size())) / 13.0 );
+	BTCMiner.connectionEffort = 1.0 + Math.exp( (1.0 - Math.sqrt(Math.min(allMiners.size(),threadPerDevice ? 1 : maxDevicesPerThread)*allMiners.size())) / 13.0 );
 //	System.out.println( BTCMiner.connectionEffort );
 
     }
@@ -622,139 +761,5339 @@ class BTCMinerCluster {
 
 
 // *****************************************************************************
-// ******* LogString ***********************************************************
+// ******* Json ****************************************************************
+// *****************************************************************************
+// Minimal JSON parser. Objects are returned as Hashtable<String,Object>, arrays 
+// as Vector<Object>, numbers as Double, strings as String, true/false as Boolean 
+// and null as Json.NULL.
+class Json {
+    public static final Object NULL = new Object() {
+	public String toString() {
+	    return "null";
+	}
+    };
+
+    private String s;
+    private int pos = 0;
+
+    private Json ( String str ) {
+	s = str;
+    }
+
+// ******* parse ***************************************************************
+    public static Object parse ( String str ) throws ParserException {
+	Json p = new Json( str );
+	try {
+	    Object o = p.value();
+	    p.skip();
+	    if ( p.pos < p.s.length() ) 
+		throw new ParserException( "Unexpected character at position " + p.pos );
+	    return o;
+	}
+	catch ( IndexOutOfBoundsException e ) {
+	    throw new ParserException( "Unexpected end of JSON string" );
+	}
+	catch ( NumberFormatException e ) {
+	    throw new ParserException( e.getLocalizedMessage() );
+	}
+    }
+
+// ******* object **************************************************************
+// casts a parsed value to an object, throws ClassCastException if it is none
+    @SuppressWarnings("unchecked")	// parse only creates Hashtable<String,Object>
+    public static Hashtable<String,Object> object ( Object o ) {
+	if ( ! (o instanceof Hashtable) ) 
+	    throw new ClassCastException( "JSON object expected" );
+	return (Hashtable<String,Object>) o;
+    }
+
+// ******* array ***************************************************************
+// casts a parsed value to an array, throws ClassCastException if it is none
+    @SuppressWarnings("unchecked")	// parse only creates Vector<Object>
+    public static Vector<Object> array ( Object o ) {
+	if ( ! (o instanceof Vector) ) 
+	    throw new ClassCastException( "JSON array expected" );
+	return (Vector<Object>) o;
+    }
+
+// ******* quote ***************************************************************
+// returns a JSON string literal
+    public static String quote ( String str ) {
+	StringBuffer sb = new StringBuffer( str.length()+2 );
+	sb.append('"');
+	for ( int i=0; i<str.length(); i++ ) {
+	    char c = str.charAt(i);
+	    if ( c=='"' || c=='\\' ) 
+		sb.append('\\').append(c);
+	    else if ( c < 32 ) 
+		sb.append( String.format("\\u%04x", (int) c) );
+	    else 
+		sb.append(c);
+	}
+	sb.append('"');
+	return sb.toString();
+    }
+
+// ******* skip ****************************************************************
+    private void skip () {
+	while ( pos < s.length() && Character.isWhitespace(s.charAt(pos)) ) 
+	    pos++;
+    }
+
+// ******* expect **************************************************************
+    private void expect ( String t ) throws ParserException {
+	if ( ! s.startsWith(t, pos) ) 
+	    throw new ParserException( "`" + t + "' expected at position " + pos );
+	pos += t.length();
+    }
+
+// ******* value ***************************************************************
+    private Object value () throws ParserException {
+	skip();
+	char c = s.charAt(pos);
+	if ( c == '{' ) {
+	    pos++;
+	    Hashtable<String,Object> h = new Hashtable<String,Object>();
+	    skip();
+	    if ( s.charAt(pos) == '}' ) {
+		pos++;
+		return h;
+	    }
+	    while ( true ) {
+		skip();
+		String k = string();
+		skip();
+		expect(":");
+		h.put( k, value() );
+		skip();
+		if ( s.charAt(pos) == '}' ) {
+		    pos++;
+		    return h;
+		}
+		expect(",");
+	    }
+	}
+	if ( c == '[' ) {
+	    pos++;
+	    Vector<Object> v = new Vector<Object>();
+	    skip();
+	    if ( s.charAt(pos) == ']' ) {
+		pos++;
+		return v;
+	    }
+	    while ( true ) {
+		v.add( value() );
+		skip();
+		if ( s.charAt(pos) == ']' ) {
+		    pos++;
+		    return v;
+		}
+		expect(",");
+	    }
+	}
+	if ( c == '"' ) 
+	    return string();
+	if ( s.startsWith("true", pos) ) {
+	    pos += 4;
+	    return Boolean.TRUE;
+	}
+	if ( s.startsWith("false", pos) ) {
+	    pos += 5;
+	    return Boolean.FALSE;
+	}
+	if ( s.startsWith("null", pos) ) {
+	    pos += 4;
+	    return NULL;
+	}
+	int i = pos;
+	while ( pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0 ) 
+	    pos++;
+	if ( i == pos ) 
+	    throw new ParserException( "Unexpected character at position " + pos );
+	return Double.valueOf( s.substring(i, pos) );
+    }
+
+// ******* string **************************************************************
+    private String string () throws ParserException {
+	expect("\"");
+	StringBuffer sb = new StringBuffer();
+	char c;
+	while ( (c = s.charAt(pos++)) != '"' ) {
+	    if ( c == '\\' ) {
+		c = s.charAt(pos++);
+		switch ( c ) {
+		    case 'b': c = '\b'; break;
+		    case 'f': c = '\f'; break;
+		    case 'n': c = '\n'; break;
+		    case 'r': c = '\r'; break;
+		    case 't': c = '\t'; break;
+		    case 'u': 
+			c = (char) Integer.parseInt( s.substring(pos, pos+4), 16 );
+			pos += 4;
+			break;
+		}
+	    }
+	    sb.append(c);
+	}
+	return sb.toString();
+    }
+}
+
+
+// *****************************************************************************
+// ******* JsonRpcResponse *****************************************************
+// *****************************************************************************
+// The fields of a JSON-RPC response which are used by BTCMiner, see JsonRpcReader
+class JsonRpcResponse {
+    public static final int NONE = 0;		// result is null or missing
+    public static final int TRUE = 1;
+    public static final int FALSE = 2;
+    public static final int OBJECT = 3;
+    public static final int OTHER = 4;
+
+    public String id = null;
+    public String error = null;		// error message, null if no error
+    public int result = NONE;
+    public byte[] data, target;		// buffers for data and target of a getwork result, may be null
+    public boolean hasData = false;	// true if data has been read completely
+    public boolean hasTarget = false;
+    public String submitOld = null;	// value of submitold or null 
+
+    public JsonRpcResponse () {
+	this( new byte[128], new byte[32] );
+    }
+
+    public JsonRpcResponse ( byte[] pData, byte[] pTarget ) {
+	data = pData;
+	target = pTarget;
+    }
+}
+
+
+// *****************************************************************************
+// ******* JsonRpcReader *******************************************************
+// *****************************************************************************
+// Single pass parser for JSON-RPC responses and batches of responses. Data and 
+// target of getwork results are decoded directly into the buffers of the 
+// response. Values which are not used by BTCMiner are skipped without being
+// stored, i.e. no strings are created for them.
+class JsonRpcReader {
+    private InputStream in = null;
+    private byte[] buf;
+    private int bufPos = 0, bufEnd = 0;
+    private long pos = -1;
+    private int c;			// current character, -1 at end of input
+    private StringBuffer key = new StringBuffer();
+    public boolean batch = false;	// set by readAll if the input is a batch of responses
+
+// ******* constructor *********************************************************
+    public JsonRpcReader ( InputStream pIn ) throws IOException {
+	in = pIn;
+	buf = new byte[4096];
+	next();
+    }
+
+    public JsonRpcReader ( byte[] b, int offs, int length ) throws IOException {
+	buf = b;
+	bufPos = offs;
+	bufEnd = offs + length;
+	next();
+    }
+
+// ******* next ****************************************************************
+    private void next () throws IOException {
+	if ( bufPos >= bufEnd ) {
+	    bufPos = 0;
+	    bufEnd = in == null ? -1 : in.read( buf, 0, buf.length );
+	    if ( bufEnd <= 0 ) {
+		bufEnd = 0;
+		c = -1;
+		return;
+	    }
+	}
+	c = buf[bufPos++] & 255;
+	pos++;
+    }
+
+// ******* skip ****************************************************************
+// skips white space
+    private void skip () throws IOException {
+	while ( c == ' ' || c == '\t' || c == '\r' || c == '\n' ) 
+	    next();
+    }
+
+// ******* error ***************************************************************
+    private ParserException error ( String msg ) {
+	return new ParserException( "JSON-RPC response: " + msg + ( c < 0 ? " at end of input" : " at position " + pos ) );
+    }
+
+// ******* expect **************************************************************
+    private void expect ( char e ) throws IOException, ParserException {
+	skip();
+	if ( c != e ) 
+	    throw error( "`" + e + "' expected" );
+	next();
+    }
+
+// ******* more ****************************************************************
+// returns true if a `,' follows and false at the end of the object or array 
+    private boolean more ( char close ) throws IOException, ParserException {
+	skip();
+	if ( c == ',' ) {
+	    next();
+	    return true;
+	}
+	if ( c == close ) {
+	    next();
+	    return false;
+	}
+	throw error( "`,' or `" + close + "' expected" );
+    }
+
+// ******* open ****************************************************************
+// reads the opening bracket, returns false if the object or array is empty
+    private boolean open ( char open, char close ) throws IOException, ParserException {
+	expect( open );
+	skip();
+	if ( c == close ) {
+	    next();
+	    return false;
+	}
+	return true;
+    }
+
+// ******* readAll *************************************************************
+// reads a response or a batch of responses
+    public Vector<JsonRpcResponse> readAll () throws IOException, ParserException {
+	Vector<JsonRpcResponse> v = new Vector<JsonRpcResponse>();
+	skip();
+	batch = c == '[';
+	if ( ! batch ) {
+	    v.add( read(new JsonRpcResponse()) );
+	}
+	else if ( open('[', ']') ) {
+	    do {
+		v.add( read(new JsonRpcResponse()) );
+	    } while ( more(']') );
+	}
+	return v;
+    }
+
+// ******* read ****************************************************************
+// reads a single response into r
+    public JsonRpcResponse read ( JsonRpcResponse r ) throws IOException, ParserException {
+	if ( open('{', '}') ) {
+	    do {
+		field();
+		if ( is("result") ) 
+		    result( r );
+		else if ( is("error") ) 
+		    r.error = errorValue();
+		else if ( is("id") ) 
+		    r.id = scalar();
+		else 
+		    skipValue();
+	    } while ( more('}') );
+	}
+	return r;
+    }
+
+// ******* result **************************************************************
+    private void result ( JsonRpcResponse r ) throws IOException, ParserException {
+	skip();
+	if ( c == '{' ) {
+	    r.result = JsonRpcResponse.OBJECT;
+	    if ( open('{', '}') ) {
+		do {
+		    field();
+		    if ( is("data") && r.data != null ) 
+			r.hasData = hex( r.data );
+		    else if ( is("target") && r.target != null ) 
+			r.hasTarget = hex( r.target );
+		    else if ( is("submitold") ) 
+			r.submitOld = scalar();
+		    else 
+			skipValue();
+		} while ( more('}') );
+	    }
+	}
+	else if ( c == '[' ) {
+	    r.result = JsonRpcResponse.OTHER;
+	    skipValue();
+	}
+	else {
+	    String s = scalar();
+	    r.result = s == null ? JsonRpcResponse.NONE : s.equals("true") ? JsonRpcResponse.TRUE : s.equals("false") ? JsonRpcResponse.FALSE : JsonRpcResponse.OTHER;
+	}
+    }
+
+// ******* errorValue **********************************************************
+// returns the message of an error object, the value of a string, or null
+    private String errorValue () throws IOException, ParserException {
+	skip();
+	if ( c != '{' ) 
+	    return scalar();
+	String msg = null, code = null;
+	if ( open('{', '}') ) {
+	    do {
+		field();
+		if ( is("message") ) 
+		    msg = scalar();
+		else if ( is("code") ) 
+		    code = scalar();
+		else 
+		    skipValue();
+	    } while ( more('}') );
+	}
+	return msg != null ? msg : code != null ? "error " + code : "unknown error";
+    }
+
+// ******* field ***************************************************************
+// reads the name of a field and the `:'
+    private void field () throws IOException, ParserException {
+	skip();
+	key.setLength( 0 );
+	string( key );
+	expect( ':' );
+	skip();
+    }
+
+// ******* is ******************************************************************
+// compares the name of the current field
+    private boolean is ( String name ) {
+	if ( key.length() != name.length() ) 
+	    return false;
+	for ( int i=0; i<name.length(); i++ ) 
+	    if ( key.charAt(i) != name.charAt(i) ) 
+		return false;
+	return true;
+    }
+
+// ******* hex *****************************************************************
+// decodes a hex string into b, returns false if the string is too short or
+// the value is not a string (e.g. null), additional digits are ignored
+    private boolean hex ( byte[] b ) throws IOException, ParserException {
+	skip();
+	if ( c != '"' ) {
+	    skipValue();
+	    return false;
+	}
+	next();
+	try {
+	    int i = 0;
+	    while ( i < b.length && c != '"' && c >= 0 ) {
+		int h = BTCMiner.hexValue( (char) c ) << 4;
+		next();
+		if ( c == '"' || c < 0 ) 
+		    break;
+		b[i++] = (byte) ( h | BTCMiner.hexValue( (char) c ) );
+		next();
+	    }
+	    while ( c != '"' && c >= 0 ) 
+		next();
+	    expect( '"' );
+	    return i == b.length;
+	}
+	catch ( NumberFormatException e ) {
+	    throw error( e.getLocalizedMessage() );
+	}
+    }
+
+// ******* scalar **************************************************************
+// returns the content of a string, the text of a number or of true/false, or 
+// null. Objects and arrays are skipped and null is returned. 
+    private String scalar () throws IOException, ParserException {
+	skip();
+	if ( c == '{' || c == '[' ) {
+	    skipValue();
+	    return null;
+	}
+	StringBuffer sb = new StringBuffer();
+	if ( c == '"' ) 
+	    string( sb );
+	else {
+	    token( sb );
+	    if ( sb.toString().equals("null") ) 
+		return null;
+	}
+	return sb.toString();
+    }
+
+// ******* skipValue ***********************************************************
+    private void skipValue () throws IOException, ParserException {
+	skip();
+	if ( c == '{' ) {
+	    if ( open('{', '}') ) {
+		do {
+		    skip();
+		    string( null );
+		    expect( ':' );
+		    skipValue();
+		} while ( more('}') );
+	    }
+	}
+	else if ( c == '[' ) {
+	    if ( open('[', ']') ) {
+		do {
+		    skipValue();
+		} while ( more(']') );
+	    }
+	}
+	else if ( c == '"' ) 
+	    string( null );
+	else 
+	    token( null );
+    }
+
+// ******* token ***************************************************************
+// reads a number, true, false or null
+    private void token ( StringBuffer sb ) throws IOException, ParserException {
+	long p = pos;
+	while ( (c>='a' && c<='z') || (c>='0' && c<='9') || c=='+' || c=='-' || c=='.' || c=='E' ) {
+	    if ( sb != null ) 
+		sb.append( (char) c );
+	    next();
+	}
+	if ( p == pos ) 
+	    throw error( "Unexpected character" );
+    }
+
+// ******* string **************************************************************
+// reads a string, the content is appended to sb (if not null)
+    private void string ( StringBuffer sb ) throws IOException, ParserException {
+	if ( c != '"' ) 
+	    throw error( "`\"' expected" );
+	next();
+	while ( c != '"' ) {
+	    if ( c < 0 ) 
+		throw error( "Unterminated string" );
+	    int d = c;
+	    next();
+	    if ( d == '\\' ) {
+		d = c;
+		next();
+		switch ( d ) {
+		    case 'b': d = '\b'; break;
+		    case 'f': d = '\f'; break;
+		    case 'n': d = '\n'; break;
+		    case 'r': d = '\r'; break;
+		    case 't': d = '\t'; break;
+		    case 'u': 
+			d = 0;
+			try {
+			    for ( int i=0; i<4; i++ ) {
+				d = (d << 4) | BTCMiner.hexValue( (char) c );
+				next();
+			    }
+			}
+			catch ( NumberFormatException e ) {
+			    throw error( "Invalid escape sequence" );
+			}
+			break;
+		}
+	    }
+	    else if ( d >= 0xc0 ) { 	// UTF-8 sequence
+		int n = d >= 0xf0 ? 3 : d >= 0xe0 ? 2 : 1;
+		d &= 0x3f >> n;
+		for ( int i=0; i<n && (c & 0xc0) == 0x80; i++ ) {
+		    d = (d << 6) | (c & 0x3f);
+		    next();
+		}
+	    }
+	    if ( sb != null ) 
+		sb.appendCodePoint( d );
+	}
+	next();
+    }
+}
+
+
+// *****************************************************************************
+// ******* StratumClient *******************************************************
+// *****************************************************************************
+// Client for stratum+tcp:// pools. Jobs are received by mining.notify and the 
+// block headers (in getwork format) are generated locally by rolling 
+// extranonce2. Thus the network traffic does not depend on the number of FPGA's. 
+// There is one client (and one connection) per URL and user.
+class StratumClient {
+    public static int timeout = 10000;		// in ms
+    public static final String prefix = "stratum+tcp://";
+
+    private static Hashtable<String,StratumClient> clients = new Hashtable<String,StratumClient>();
+
+    private String url, user, passw, host;
+    private int port;
+
+    // connection, guarded by connectLock
+    private Object connectLock = new Object();
+    private volatile Socket socket = null;
+    private OutputStream out = null;
+    private volatile boolean connected = false;
+
+    // pending requests, guarded by responses
+    private int lastId = 0;
+    private HashSet<Integer> pending = new HashSet<Integer>();	// id's of the requests waiting for a response
+    private Hashtable<Integer,Hashtable<String,Object>> responses = new Hashtable<Integer,Hashtable<String,Object>>();
+
+    // current job, guarded by this
+    private String extranonce1 = null;
+    private int extranonce2Size = 4;
+    private long extranonce2 = 0;
+    private String jobId = null;
+    private String prevHash, coinb1, coinb2, version, nbits, ntime;
+    private Vector<byte[]> merkleBranch = new Vector<byte[]>();
+    private byte[] target = new byte[32];
+
+    // job id and extranonce2 of the generated merkle roots
+    private LinkedHashMap<String,String[]> shares = new LinkedHashMap<String,String[]>() {
+	protected boolean removeEldestEntry( Map.Entry<String,String[]> e ) {
+	    return size() > 4096;
+	}
+    };
+
+    private MessageDigest digest;
+
+// ******* constructor *********************************************************
+    private StratumClient ( String pUrl, String pUser, String pPassw ) throws MalformedURLException {
+	url = pUrl;
+	user = pUser;
+	passw = pPassw;
+	String s = url.substring( prefix.length() );
+	int i = s.indexOf('/');
+	if ( i >= 0 ) 
+	    s = s.substring(0,i);
+	i = s.lastIndexOf(':');
+	try {
+	    if ( i < 0 ) 
+		throw new NumberFormatException();
+	    host = s.substring(0,i);
+	    port = Integer.parseInt( s.substring(i+1) );
+	}
+	catch ( NumberFormatException e ) {
+	    throw new MalformedURLException( "Invalid stratum URL: " + url );
+	}
+	try {
+	    digest = MessageDigest.getInstance("SHA-256");
+	}
+	catch ( NoSuchAlgorithmException e ) {
+	    throw new RuntimeException( e );
+	}
+	setDifficulty( 1.0 );
+    }
+
+// ******* isStratum ***********************************************************
+    public static boolean isStratum ( String url ) {
+	return url.regionMatches( true, 0, prefix, 0, prefix.length() );
+    }
+
+// ******* get *****************************************************************
+// returns the client for a URL and user
+    public static StratumClient get ( String url, String user, String passw ) throws MalformedURLException {
+	String key = url + "\n" + user + "\n" + passw;
+	synchronized ( clients ) {
+	    StratumClient c = clients.get( key );
+	    if ( c == null ) {
+		c = new StratumClient( url, user, passw );
+		clients.put( key, c );
+	    }
+	    return c;
+	}
+    }
+
+// ******* connect *************************************************************
+    private void connect () throws IOException {
+	synchronized ( connectLock ) {
+	    if ( connected ) 
+		return;
+	    synchronized ( this ) {
+		jobId = null;
+		extranonce1 = null;
+	    }
+	    final Socket s = new Socket();
+	    s.setTcpNoDelay( true );
+	    s.connect( new InetSocketAddress(host, port), timeout );
+	    final BufferedReader in = new BufferedReader( new InputStreamReader(s.getInputStream(), "UTF-8") );
+	    socket = s;
+	    out = new BufferedOutputStream( s.getOutputStream() );
+	    connected = true;
+	    Thread t = new Thread( new Runnable() {
+		public void run () {
+		    StratumClient.this.run( s, in );
+		}
+	    }, "stratum " + host + ":" + port );
+	    t.setDaemon( true );
+	    t.start();
+
+	    try {
+		Object r = call( "mining.subscribe", Json.quote("ztexBTCMiner") ).get("result");
+		if ( ! (r instanceof Vector) || ((Vector) r).size() < 3 ) 
+		    throw new IOException( "Invalid response to mining.subscribe" );
+		synchronized ( this ) {
+		    extranonce1 = (String) ((Vector) r).elementAt(1);
+		    extranonce2Size = ((Double) ((Vector) r).elementAt(2)).intValue();
+		    extranonce2 = 0;
+		}
+		r = call( "mining.authorize", Json.quote(user) + "," + Json.quote(passw) ).get("result");
+		if ( ! Boolean.TRUE.equals(r) ) 
+		    throw new IOException( "Stratum authorization failed for user " + user );
+	    }
+	    catch ( ClassCastException e ) {
+		close( s );
+		throw new IOException( "Invalid response to mining.subscribe" );
+	    }
+	    catch ( IOException e ) {
+		close( s );
+		throw e;
+	    }
+	    BTCMiner.printMsg( "Connected to " + url );
+	}
+    }
+
+// ******* close ***************************************************************
+// closes connection s, the state is only reset if s is the current connection
+    private void close ( Socket s ) {
+	try {
+	    s.close();
+	}
+	catch ( Exception e ) {
+	}
+	if ( s != socket ) 
+	    return;
+	connected = false;
+	synchronized ( responses ) {
+	    responses.notifyAll();
+	}
+	synchronized ( this ) {
+	    notifyAll();
+	}
+    }
+
+// ******* call ****************************************************************
+// sends a request and waits for the response
+    private Hashtable<String,Object> call ( String method, String params ) throws IOException {
+	int id;
+	synchronized ( responses ) {
+	    lastId += 1;
+	    id = lastId;
+	    pending.add( id );
+	}
+	try {
+	    String s = "{\"id\":" + id + ",\"method\":\"" + method + "\",\"params\":[" + params + "]}\n";
+	    synchronized ( out ) {
+		out.write( s.getBytes("UTF-8") );
+		out.flush();
+	    }
+	    long t = new Date().getTime() + timeout;
+	    synchronized ( responses ) {
+		while ( ! responses.containsKey(id) ) {
+		    long d = t - new Date().getTime();
+		    if ( ! connected ) 
+			throw new MaybeSentException( "Connection to " + url + " closed" );
+		    if ( d <= 0 ) 
+			throw new MaybeSentException( method + ": No response from " + url );
+		    try {
+			responses.wait( d );
+		    }
+		    catch ( InterruptedException e ) {
+		    }
+		}
+		return responses.get(id);
+	    }
+	}
+	finally {
+	    // late responses are dropped by run
+	    synchronized ( responses ) {
+		pending.remove( id );
+		responses.remove( id );
+	    }
+	}
+    }
+
+// ******* run *****************************************************************
+// reads the messages from connection s
+    private void run ( Socket s, BufferedReader in ) {
+	try {
+	    String line;
+	    while ( (line = in.readLine()) != null ) {
+		if ( line.trim().length() == 0 )
+		    continue;
+		Hashtable<String,Object> msg;
+		try {
+		    msg = Json.object( Json.parse(line) );
+		}
+		catch ( Exception e ) {
+		    BTCMiner.printMsg( url + ": Invalid message: " + line );
+		    continue;
+		}
+		Object m = msg.get("method");
+		if ( m instanceof String ) {
+		    try {
+			handle( (String) m, Json.array(msg.get("params")) );
+		    }
+		    catch ( Exception e ) {
+			BTCMiner.printMsg( url + ": Invalid " + m + " message: " + e.getLocalizedMessage() );
+		    }
+		}
+		else if ( msg.get("id") instanceof Double ) {
+		    int id = ((Double) msg.get("id")).intValue();
+		    synchronized ( responses ) {
+			if ( pending.contains(id) ) {
+			    responses.put( id, msg );
+			    responses.notifyAll();
+			}
+		    }
+		}
+	    }
+	}
+	catch ( IOException e ) {
+	}
+	if ( connected && s == socket ) 
+	    BTCMiner.printMsg( "Connection to " + url + " closed" );
+	close( s );
+    }
+
+// ******* handle **************************************************************
+// handles notifications
+    private void handle ( String method, Vector<Object> params ) throws ParserException {
+	if ( method.equals("mining.notify") ) {
+	    Vector<byte[]> mb = new Vector<byte[]>();
+	    Vector<Object> v = Json.array( params.elementAt(4) );
+	    for ( int i=0; i<v.size(); i++ ) 
+		mb.add( BTCMiner.hexStrToData( (String) v.elementAt(i) ) );
+	    boolean clean = Boolean.TRUE.equals( params.elementAt(8) );
+	    byte[] data = new byte[128];
+	    synchronized ( this ) {
+		jobId = (String) params.elementAt(0);
+		prevHash = (String) params.elementAt(1);
+		coinb1 = (String) params.elementAt(2);
+		coinb2 = (String) params.elementAt(3);
+		merkleBranch = mb;
+		version = (String) params.elementAt(5);
+		nbits = (String) params.elementAt(6);
+		ntime = (String) params.elementAt(7);
+		if ( clean ) 
+		    shares.clear();
+		if ( extranonce1 == null ) 	// first job, may arrive before the response to mining.subscribe
+		    return;
+		buildHeader( data );
+		notifyAll();
+	    }
+	    if ( clean && BTCMiner.newBlockMonitor != null ) 
+		BTCMiner.newBlockMonitor.checkNew( data );
+	}
+	else if ( method.equals("mining.set_difficulty") ) {
+	    setDifficulty( ((Double) params.elementAt(0)).doubleValue() );
+	}
+	else if ( method.equals("client.show_message") ) {
+	    BTCMiner.printMsg( url + ": " + params.elementAt(0) );
+	}
+    }
+
+// ******* setDifficulty *******************************************************
+// target = 0xffff * 2^208 / difficulty as 256 bit little endian number 
+    private synchronized void setDifficulty ( double d ) {
+	java.math.BigInteger t = new java.math.BigDecimal( java.math.BigInteger.valueOf(0xffff).shiftLeft(208) ).divide( new java.math.BigDecimal(d), java.math.RoundingMode.DOWN ).toBigInteger();
+	byte[] b = t.toByteArray();
+	for ( int i=0; i<32; i++ ) 
+	    target[i] = ( b.length > 32 || t.signum() <= 0 ) ? (byte) 255 : i < b.length ? b[b.length-1-i] : 0;
+    }
+
+// ******* dsha256 *************************************************************
+    private byte[] dsha256 ( byte[] buf ) {
+	digest.reset();
+	byte[] h = digest.digest( buf );
+	digest.reset();
+	return digest.digest( h );
+    }
+
+// ******* buildHeader *********************************************************
+// generates the header of the current job with the next extranonce2, 
+// returns the extranonce2 string
+    private synchronized String buildHeader ( byte[] data ) throws NumberFormatException {
+	StringBuffer sb = new StringBuffer();
+	long e = extranonce2++;
+	for ( int i=extranonce2Size-1; i>=0; i-- ) {
+	    int b = i < 8 ? (int) ( (e >> (i*8)) & 255 ) : 0;
+	    sb.append( Character.forDigit(b >> 4, 16) );
+	    sb.append( Character.forDigit(b & 15, 16) );
+	}
+	String en2 = sb.toString();
+
+	byte[] root = dsha256( BTCMiner.hexStrToData(coinb1 + extranonce1 + en2 + coinb2) );
+	byte[] buf = new byte[64];
+	for ( int i=0; i<merkleBranch.size(); i++ ) {
+	    System.arraycopy( root, 0, buf, 0, 32 );
+	    System.arraycopy( merkleBranch.elementAt(i), 0, buf, 32, 32 );
+	    root = dsha256( buf );
+	}
+
+	// getwork format: the bytes of every 32 bit word are swapped
+	byte[] h = BTCMiner.hexStrToData( version + prevHash + "0000000000000000000000000000000000000000000000000000000000000000" + ntime + nbits + "00000000" );
+	if ( h.length != 80 ) 
+	    throw new NumberFormatException( "Invalid length of header" );
+	System.arraycopy( h, 0, data, 0, 80 );
+	for ( int i=0; i<32; i++ ) 
+	    data[36+i] = root[(i & ~3) + 3 - (i & 3)];
+	System.arraycopy( BTCMiner.sha256_pad1, 0, data, 128-BTCMiner.sha256_pad1.length, BTCMiner.sha256_pad1.length );
+	return en2;
+    }
+
+// ******* getWork *************************************************************
+// generates new work, waits for the first job if required
+    public void getWork ( WorkUnit w ) throws IOException, ParserException {
+	connect();
+	synchronized ( this ) {
+	    long t = new Date().getTime() + timeout;
+	    while ( jobId == null ) {
+		long d = t - new Date().getTime();
+		if ( ! connected ) 
+		    throw new IOException( "Connection to " + url + " closed" );
+		if ( d <= 0 ) 
+		    throw new SocketTimeoutException( "No job received from " + url );
+		try {
+		    wait( d );
+		}
+		catch ( InterruptedException e ) {
+		}
+	    }
+	    try {
+		String en2 = buildHeader( w.data );
+		shares.put( BTCMiner.dataToHexStr(w.data, 36, 32), new String[] { jobId, en2 } );
+	    }
+	    catch ( NumberFormatException e ) {
+		throw new ParserException( "Invalid job from " + url + ": " + e.getLocalizedMessage() );
+	    }
+	    System.arraycopy( target, 0, w.target, 0, 32 );
+	}
+    }
+
+// ******* submit **************************************************************
+// submits a share, returns null if it has been accepted or the error message 
+    public String submit ( byte[] data ) throws IOException {
+	String[] s;
+	synchronized ( this ) {
+	    s = shares.get( BTCMiner.dataToHexStr(data, 36, 32) );
+	}
+	if ( s == null ) 
+	    return "stale (unknown job)";
+	connect();
+	Hashtable<String,Object> r = call( "mining.submit", Json.quote(user) + "," + Json.quote(s[0]) + "," + Json.quote(s[1]) + "," + Json.quote(BTCMiner.dataToHexStr(data, 68, 4)) + "," + Json.quote(BTCMiner.dataToHexStr(data, 76, 4)) );
+	Object e = r.get("error");
+	if ( Boolean.TRUE.equals(r.get("result")) ) 
+	    return null;
+	return e==null || e==Json.NULL ? "rejected" : e.toString();
+    }
+}
+
+
+// *****************************************************************************
+// ******* HttpResponse ********************************************************
+// *****************************************************************************
+class HttpResponse {
+    public int status;
+    public Hashtable<String,String> headers = new Hashtable<String,String>();	// keys are lower case
+    public byte[] content;		// the decoded body
+
+// ******* body ****************************************************************
+    public String body () throws UnsupportedEncodingException {
+	return new String( content, "UTF-8" );
+    }
+
+// ******* reader **************************************************************
+// returns a JSON-RPC reader for the body
+    public JsonRpcReader reader () throws IOException {
+	return new JsonRpcReader( content, 0, content.length );
+    }
+
+// ******* header **************************************************************
+// returns the value of a header field or null
+    public String header ( String key ) {
+	return headers.get( key.toLowerCase() );
+    }
+}
+
+
+// *****************************************************************************
+// ******* HttpTransport *******************************************************
+// *****************************************************************************
+// HTTP/1.1 client with persistent connections. There is one transport per URL
+// and user which keeps a pool of idle connections. The request header 
+// (including the authorization) is only build once.
+class HttpTransport {
+    public static int maxIdle = 4;		// maximum number of idle connections per transport
+    public static long keepAliveTime = 15000;	// idle connections older than this (in ms) are closed
+
+    private static Hashtable<String,HttpTransport> transports = new Hashtable<String,HttpTransport>();
+
+    private String url;
+    private String host;
+    private int port;
+    private boolean https;
+    private byte[] headerBuf;
+    private LinkedList<Connection> idle = new LinkedList<Connection>();
+
+    // metrics
+    private Counter requests, connects, reused;
+    private Counter staleRetries;	// reused connection was closed by the server
+
+    private class Connection {
+	Socket socket;
+	BufferedInputStream in;
+	OutputStream out;
+	long lastUsed;
+	byte[] buf = new byte[4096];	// response buffer, grows if required
+    }
+
+// ******* constructor *********************************************************
+    private HttpTransport ( String pUrl, String user, String passw ) throws MalformedURLException {
+	url = pUrl;
+	URL u = new URL( url );
+	requests = Metrics.counter( "http_requests", "url", url );
+	connects = Metrics.counter( "http_connections", "url", url );
+	reused = Metrics.counter( "http_reused", "url", url );
+	staleRetries = Metrics.counter( "http_stale", "url", url );
+	https = u.getProtocol().equalsIgnoreCase("https");
+	if ( ! https && ! u.getProtocol().equalsIgnoreCase("http") )
+	    throw new MalformedURLException( "Unsupported protocol: " + u.getProtocol() );
+	host = u.getHost();
+	port = u.getPort() >= 0 ? u.getPort() : ( https ? 443 : 80 );
+	String path = u.getFile().equals("") ? "/" : u.getFile();
+
+	String s = "POST " + path + " HTTP/1.1\r\n" +
+	    "Host: " + host + ( u.getPort() >= 0 ? ":" + port : "" ) + "\r\n" +
+	    "Authorization: Basic " + BTCMiner.encodeBase64(user + ":" + passw) + "\r\n" +
+	    "Accept-Encoding: gzip,deflate\r\n" +
+	    "Content-Type: application/json\r\n" +
+	    "Cache-Control: no-cache\r\n" +
+	    "User-Agent: ztexBTCMiner\r\n" +
+	    "X-Mining-Extensions: longpoll midstate submitold\r\n" +
+	    "Connection: keep-alive\r\n" +
+	    "Content-Length: ";
+	try {
+	    headerBuf = s.getBytes("ISO-8859-1");
+	}
+	catch ( UnsupportedEncodingException e ) {
+	    headerBuf = s.getBytes();
+	}
+    }
+
+// ******* get *****************************************************************
+// returns the transport for a URL and user
+    public static HttpTransport get ( String url, String user, String passw ) throws MalformedURLException {
+	String key = url + "\n" + user + "\n" + passw;
+	synchronized ( transports ) {
+	    HttpTransport t = transports.get( key );
+	    if ( t == null ) {
+		t = new HttpTransport( url, user, passw );
+		transports.put( key, t );
+	    }
+	    return t;
+	}
+    }
+
+// ******* connect *************************************************************
+    private Connection connect ( int connectTimeout ) throws IOException {
+	Connection c = new Connection();
+	Socket s = new Socket();
+	s.setTcpNoDelay( true );
+	s.connect( new InetSocketAddress(host, port), connectTimeout );
+	if ( https ) {
+	    javax.net.ssl.SSLSocket ss = (javax.net.ssl.SSLSocket) ((javax.net.ssl.SSLSocketFactory) javax.net.ssl.SSLSocketFactory.getDefault()).createSocket( s, host, port, true );
+	    javax.net.ssl.SSLParameters p = ss.getSSLParameters();
+	    p.setEndpointIdentificationAlgorithm( "HTTPS" );	// verify the host name, the request contains the credentials
+	    ss.setSSLParameters( p );
+	    ss.startHandshake();
+	    s = ss;
+	}
+	c.socket = s;
+	c.in = new BufferedInputStream( s.getInputStream() );
+	c.out = new BufferedOutputStream( s.getOutputStream() );
+	connects.inc();
+	return c;
+    }
+
+// ******* close ***************************************************************
+    private static void close ( Connection c ) {
+	try {
+	    c.socket.close();
+	}
+	catch ( IOException e ) {
+	}
+    }
+
+// ******* takeIdle ************************************************************
+// returns an idle connection or null
+    private synchronized Connection takeIdle () {
+	long t = new Date().getTime();
+	while ( idle.size() > 0 ) {
+	    Connection c = idle.removeLast();
+	    if ( c.lastUsed + keepAliveTime > t && ! c.socket.isClosed() ) 
+		return c;
+	    close( c );
+	}
+	return null;
+    }
+
+// ******* release *************************************************************
+    private synchronized void release ( Connection c ) {
+	c.lastUsed = new Date().getTime();
+	if ( idle.size() < maxIdle ) 
+	    idle.add( c );
+	else 
+	    close( c );
+    }
+
+// ******* request *************************************************************
+// sends a POST request. A reused connection which has been closed by the 
+// server is detected by a failure before the status line and the request is 
+// repeated once using a new connection. If resend is false and the request 
+// fails after it has been written completely, a MaybeSentException is thrown 
+// and the request is not repeated, i.e. shares are not submitted twice.
+    public HttpResponse request ( String body, boolean resend, int connectTimeout, int readTimeout ) throws IOException {
+	requests.inc();
+	byte[] b = body.getBytes("UTF-8");
+	Connection c = takeIdle();
+	if ( c != null ) {
+	    try {
+		HttpResponse r = request( c, b, resend, readTimeout );
+		reused.inc();
+		return r;
+	    }
+	    catch ( StaleConnectionException e ) {
+		staleRetries.inc();
+	    }
+	}
+	return request( connect(connectTimeout), b, resend, readTimeout );
+    }
+
+    private static class StaleConnectionException extends IOException {
+	private static final long serialVersionUID = 1L;
+	final boolean written;		// true if the request has been written
+	StaleConnectionException ( String msg, boolean w ) {
+	    super( msg );
+	    written = w;
+	}
+    }
+
+    public static class StatusException extends IOException {
+	private static final long serialVersionUID = 1L;
+	public final int status;
+	StatusException ( int s, String msg ) {
+	    super( msg );
+	    status = s;
+	}
+    }
+
+// failures after the request has been written are reported as MaybeSentException if resend is false
+    private HttpResponse request ( Connection c, byte[] body, boolean resend, int readTimeout ) throws IOException {
+	boolean keepAlive = false;
+	boolean written = false;
+	try {
+	    HttpResponse r = new HttpResponse();
+	    String line;
+	    try {
+		c.socket.setSoTimeout( readTimeout );
+		c.out.write( headerBuf );
+		c.out.write( ( body.length + "\r\n\r\n" ).getBytes("ISO-8859-1") );
+		c.out.write( body );
+		c.out.flush();
+		written = true;
+		line = readLine( c.in );
+	    }
+	    catch ( SocketTimeoutException e ) {
+		throw e;
+	    }
+	    catch ( IOException e ) {
+		throw new StaleConnectionException( e.getLocalizedMessage(), written );
+	    }
+	    if ( line == null ) 
+		throw new StaleConnectionException( "Connection closed by server", written );
+
+	    // status line
+	    int i = line.indexOf(' ');
+	    if ( ! line.startsWith("HTTP/") || i < 0 ) 
+		throw new IOException( "Invalid HTTP response: " + line );
+	    keepAlive = line.startsWith("HTTP/1.1");
+	    try {
+		r.status = Integer.parseInt( line.substring(i+1, Math.min(i+4, line.length())) );
+	    }
+	    catch ( NumberFormatException e ) {
+		throw new IOException( "Invalid HTTP response: " + line );
+	    }
+
+	    // header
+	    while ( (line = readLine(c.in)) != null && line.length() > 0 ) {
+		i = line.indexOf(':');
+		if ( i > 0 ) 
+		    r.headers.put( line.substring(0,i).trim().toLowerCase(), line.substring(i+1).trim() );
+	    }
+	    if ( line == null ) 
+		throw new IOException( "Unexpected end of HTTP header" );
+	    String s = r.header("Connection");
+	    if ( s != null ) 
+		keepAlive = s.equalsIgnoreCase("keep-alive") || ( keepAlive && ! s.equalsIgnoreCase("close") );
+
+	    // body
+	    int len = 0;
+	    s = r.header("Transfer-Encoding");
+	    if ( s != null && s.equalsIgnoreCase("chunked") ) {
+		int cl;
+		while ( (cl = Integer.parseInt(readChunkLine(c.in).split(";")[0].trim(), 16)) > 0 ) {
+		    len = readBody( c, len, cl );
+		    readChunkLine( c.in );
+		}
+		while ( (line = readLine(c.in)) != null && line.length() > 0 ) ;	// trailer
+	    }
+	    else if ( (s = r.header("Content-Length")) != null ) {
+		len = readBody( c, 0, Integer.parseInt(s.trim()) );
+	    }
+	    else {
+		len = readBody( c, 0, -1 );
+		keepAlive = false;
+	    }
+
+	    // decode
+	    s = r.header("Content-Encoding");
+	    InputStream is = null;
+	    if ( s == null || s.equalsIgnoreCase("identity") ) {
+		r.content = new byte[len];
+		System.arraycopy( c.buf, 0, r.content, 0, len );
+	    }
+	    else if ( s.equalsIgnoreCase("gzip") )
+		is = new GZIPInputStream( new ByteArrayInputStream(c.buf, 0, len) );
+	    else if ( s.equalsIgnoreCase("deflate") )
+		is = new InflaterInputStream( new ByteArrayInputStream(c.buf, 0, len) );
+	    else
+		throw new IOException( "httpGet: Unknown encoding: " + s );
+	    if ( is != null ) {
+		ByteArrayOutputStream os = new ByteArrayOutputStream( len*4 );
+		byte[] buf = new byte[4096];
+		int l;
+		while ( (l = is.read(buf)) > 0 ) 
+		    os.write( buf, 0, l );
+		r.content = os.toByteArray();
+	    }
+
+	    if ( r.status != 200 ) 
+		throw new StatusException( r.status, "Server returned HTTP response code: " + r.status + " for URL: " + url );
+	    return r;
+	}
+	catch ( NumberFormatException e ) {
+	    keepAlive = false;
+	    if ( written && ! resend ) 
+		throw new MaybeSentException( "Invalid HTTP response: " + e.getLocalizedMessage() );
+	    throw new IOException( "Invalid HTTP response: " + e.getLocalizedMessage() );
+	}
+	catch ( StatusException e ) {
+	    keepAlive = false;
+	    throw e;
+	}
+	catch ( IOException e ) {
+	    keepAlive = false;
+	    if ( written && ! resend ) 
+		throw new MaybeSentException( e.getLocalizedMessage() );
+	    throw e;
+	}
+	finally {
+	    if ( keepAlive ) 
+		release( c );
+	    else 
+		close( c );
+	}
+    }
+
+// ******* readBody ************************************************************
+// appends length bytes (or all bytes until end of stream if length<0) to the response buffer
+    private static int readBody ( Connection c, int offs, int length ) throws IOException {
+	while ( length != 0 ) {
+	    if ( offs >= c.buf.length ) {
+		byte[] b = new byte[c.buf.length*2];
+		System.arraycopy( c.buf, 0, b, 0, offs );
+		c.buf = b;
+	    }
+	    int l = c.in.read( c.buf, offs, length < 0 ? c.buf.length - offs : Math.min(length, c.buf.length - offs) );
+	    if ( l < 0 ) {
+		if ( length < 0 ) 
+		    break;
+		throw new IOException( "Unexpected end of HTTP response" );
+	    }
+	    offs += l;
+	    if ( length > 0 ) 
+		length -= l;
+	}
+	return offs;
+    }
+
+// ******* readLine ************************************************************
+// reads a CRLF or LF terminated line, returns null at end of stream
+    private static String readLine ( InputStream in ) throws IOException {
+	StringBuffer sb = new StringBuffer();
+	int b;
+	while ( (b = in.read()) >= 0 && b != '\n' ) {
+	    if ( b != '\r' ) 
+		sb.append( (char) b );
+	}
+	return ( b < 0 && sb.length() == 0 ) ? null : sb.toString();
+    }
+
+// ******* readChunkLine *******************************************************
+// same as readLine but the end of stream is an error
+    private static String readChunkLine ( InputStream in ) throws IOException {
+	String s = readLine( in );
+	if ( s == null ) 
+	    throw new IOException( "Unexpected end of HTTP response" );
+	return s;
+    }
+
+// ******* printInfo ***********************************************************
+// prints the connection reuse statistics of all transports
+    public static void printInfo () {
+	synchronized ( transports ) {
+	    for ( Enumeration<HttpTransport> e = transports.elements(); e.hasMoreElements(); ) {
+		HttpTransport t = e.nextElement();
+		long n = t.requests.get();
+		if ( n > 0 ) 
+		    BTCMiner.printMsg2( t.url + ": " + n + " requests, " + t.connects.get() + " connections, " 
+			+ String.format("%.1f", t.reused.get() * 100.0 / n) + "% reused, " + t.staleRetries.get() + " stale" );
+	    }
+	}
+    }
+}
+
+
+// *****************************************************************************
+// ******* WorkUnit ************************************************************
+// *****************************************************************************
+// work from a pool, ready for being sent to the FPGA
+class WorkUnit {
+    public byte[] data = new byte[128];
+    public byte[] midstate = new byte[32];
+    public byte[] target = new byte[32];
+    public int rpcNum;			// the pool
+    public int newCount;		// NewBlockMonitor.newCount when the work was fetched
+    public long time;			// time when the work was fetched
+    public long queueTime;		// time when the work was put into the prefetch queue
+    public int rolls = 0;		// ntime increment
+    public int maxRolls = 0;		// maximum ntime increment, 0 if ntime rolling is not allowed
+    public long expire = 0;		// time until which the work can be rolled
+
+// ******* roll ****************************************************************
+// returns a copy with ntime incremented by one or null if the work cannot be
+// rolled any more. ntime is part of the second block, i.e. the midstate does 
+// not change.
+    public WorkUnit roll () {
+	long t = new Date().getTime();
+	if ( rolls >= maxRolls || t >= expire ) 
+	    return null;
+	WorkUnit w = new WorkUnit();
+	System.arraycopy( data, 0, w.data, 0, 128 );
+	System.arraycopy( midstate, 0, w.midstate, 0, 32 );
+	System.arraycopy( target, 0, w.target, 0, 32 );
+	w.rpcNum = rpcNum;
+	w.newCount = newCount;
+	w.time = t;
+	w.rolls = rolls + 1;
+	w.maxRolls = maxRolls;
+	w.expire = expire;
+	// data contains ntime in big endian format
+	BTCMiner.intToData( Integer.reverseBytes( Integer.reverseBytes(BTCMiner.dataToInt(data, 68)) + 1 ), w.data, 68 );
+	return w;
+    }
+}
+
+
+// *****************************************************************************
+// ******* WorkRecord **********************************************************
+// *****************************************************************************
+// Compact binary format of work units and shares for logs and traces. A record 
+// consists of the type, the time in ms, the pool number, the device name 
+// (shares only), the 80 bytes of the block header and the target (work units 
+// only). The SHA-256 padding of the getwork data is not stored.
+// Traces (see -tr and TraceReplay) contain further records with the device name 
+// and either a buffer (DEVICE, SEND, POLL: 16 bit length and the bytes of the 
+// USB transfer) or a value (FREQ, TEMP, RESULT: float).
+class WorkRecord {
+    public static final int WORK = 'W';
+    public static final int SHARE = 'S';
+    public static final int DEVICE = 'D';	// descriptor
+    public static final int SEND = 'X';		// midstate and data sent to the FPGA
+    public static final int POLL = 'P';		// golden nonces, nonce and hash value read from the FPGA
+    public static final int FREQ = 'F';		// frequency multiplier
+    public static final int TEMP = 'T';		// temperature in C
+    public static final int RESULT = 'R';	// result of a submitted share, 1 if rejected
+
+    public int type;
+    public long time;
+    public int rpcNum;
+    public String device = "";
+    public byte[] data = new byte[128];
+    public byte[] target = new byte[32];
+    public byte[] buf = null;		// DEVICE, SEND and POLL records
+    public double value = 0;		// FREQ, TEMP and RESULT records
+
+// ******* writeWork ***********************************************************
+    public static void writeWork ( DataOutputStream out, long time, int rpc, byte[] data, byte[] target ) throws IOException {
+	synchronized ( out ) {
+	    out.writeByte( WORK );
+	    out.writeLong( time );
+	    out.writeByte( rpc );
+	    out.write( data, 0, 80 );
+	    out.write( target, 0, 32 );
+	    out.flush();
+	}
+    }
+
+// ******* writeShare **********************************************************
+    public static void writeShare ( DataOutputStream out, long time, int rpc, String device, byte[] data ) throws IOException {
+	synchronized ( out ) {
+	    out.writeByte( SHARE );
+	    out.writeLong( time );
+	    out.writeByte( rpc );
+	    out.writeUTF( device );
+	    out.write( data, 0, 80 );
+	    out.flush();
+	}
+    }
+
+// ******* writeBuffer *********************************************************
+    public static void writeBuffer ( DataOutputStream out, int type, long time, String device, byte[] buf, int length ) throws IOException {
+	synchronized ( out ) {
+	    out.writeByte( type );
+	    out.writeLong( time );
+	    out.writeByte( 0 );
+	    out.writeUTF( device );
+	    out.writeShort( length );
+	    out.write( buf, 0, length );
+	    out.flush();
+	}
+    }
+
+// ******* writeValue **********************************************************
+    public static void writeValue ( DataOutputStream out, int type, long time, int rpc, String device, double value ) throws IOException {
+	synchronized ( out ) {
+	    out.writeByte( type );
+	    out.writeLong( time );
+	    out.writeByte( rpc );
+	    out.writeUTF( device );
+	    out.writeFloat( (float) value );
+	    out.flush();
+	}
+    }
+
+// ******* read ****************************************************************
+// returns null at the end of the stream
+    public static WorkRecord read ( DataInputStream in ) throws IOException {
+	int t = in.read();
+	if ( t < 0 ) 
+	    return null;
+	if ( "WSDXPFTR".indexOf(t) < 0 ) 
+	    throw new IOException( "Invalid record type: " + t );
+	WorkRecord r = new WorkRecord();
+	r.type = t;
+	r.time = in.readLong();
+	r.rpcNum = in.readUnsignedByte();
+	if ( t != WORK ) 
+	    r.device = in.readUTF();
+	if ( t == DEVICE || t == SEND || t == POLL ) {
+	    r.buf = new byte[in.readUnsignedShort()];
+	    in.readFully( r.buf );
+	    return r;
+	}
+	if ( t == FREQ || t == TEMP || t == RESULT ) {
+	    r.value = in.readFloat();
+	    return r;
+	}
+	in.readFully( r.data, 0, 80 );
+	System.arraycopy( BTCMiner.sha256_pad1, 0, r.data, 80, 48 );
+	if ( t == WORK ) 
+	    in.readFully( r.target );
+	return r;
+    }
+
+// ******* toString ************************************************************
+// same format as the text log
+    public String toString () {
+	String u = rpcNum < BTCMiner.rpcCount && BTCMiner.rpcurl[rpcNum] != null ? BTCMiner.rpcurl[rpcNum] : "pool " + rpcNum;
+	String d = BTCMiner.dateFormat.format( new Date(time) ) + ": ";
+	if ( type == SHARE ) 
+	    return d + device + ": submitted " + BTCMiner.dataToHexStr(data) + " to " + u;
+	if ( type == RESULT ) 
+	    return d + "share " + ( value != 0 ? "rejected" : "accepted" ) + " by " + u;
+	if ( type == DEVICE ) 
+	    return d + device + ": descriptor " + BTCMiner.dataToHexStr(buf);
+	if ( type == SEND ) 
+	    return d + device + ": sent " + BTCMiner.dataToHexStr(buf);
+	if ( type == POLL ) 
+	    return d + device + ": read " + BTCMiner.dataToHexStr(buf);
+	if ( type == FREQ ) 
+	    return d + device + ": frequency multiplier " + (int) value;
+	if ( type == TEMP ) 
+	    return d + device + ": temperature " + String.format("%.1f", value) + "C";
+	return d + "work " + BTCMiner.dataToHexStr(data) + " target " + BTCMiner.dataToHexStr(target) + " from " + u;
+    }
+
+// ******* print ***************************************************************
+    public static void print ( String fileName ) throws IOException {
+	DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream(fileName) ) );
+	try {
+	    WorkRecord r;
+	    while ( (r = read(in)) != null ) 
+		System.out.println( r );
+	}
+	finally {
+	    in.close();
+	}
+    }
+}
+
+
+// *****************************************************************************
+// ******* FreqProfileStore ****************************************************
+// *****************************************************************************
+// Persistent store of the frequency/error profiles of the FPGA's. A profile 
+// consists of errorCount, errorWeight and maxErrorRate of the frequency steps 
+// with measurements. It is identified by bitstream, serial number and FPGA 
+// number (see BTCMiner.profileKey). Profiles are appended to the file at most 
+// every saveInterval ms per FPGA, if the FPGA is suspended and before the 
+// counters are reset. The last record of a profile is valid. The file is 
+// loaded at startup and rewritten if it contains too many outdated records or
+// a truncated record. Thus a restarted miner continues at its tuned frequency
+// instead of climbing from the default frequency again.
+class FreqProfileStore {
+    public static long saveInterval = 300000;	// in ms
+
+    private String fileName;
+    private DataOutputStream out = null;
+    private Hashtable<String,Profile> profiles = new Hashtable<String,Profile>();
+    private Hashtable<String,Long> saveTimes = new Hashtable<String,Long>();
+
+    private static class Profile {
+	String name;
+	long time;
+	double freqM1;
+	int size = 0;
+	int[] steps = new int[256];
+	float[] errorCount = new float[256];
+	float[] errorWeight = new float[256];
+	float[] maxErrorRate = new float[256];
+    }
+
+// ******* constructor *********************************************************
+    public FreqProfileStore ( String fn ) throws IOException {
+	fileName = fn;
+	int records = 0;
+	boolean truncated = false;
+	if ( new File(fileName).exists() ) {
+	    DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream(fileName) ) );
+	    try {
+		Profile p;
+		while ( (p = read(in)) != null ) {
+		    profiles.put( p.name, p );
+		    records++;
+		}
+	    }
+	    catch ( IOException e ) {
+		truncated = true;
+	    }
+	    finally {
+		in.close();
+	    }
+	}
+	if ( truncated || records > 2*profiles.size() + 16 ) 
+	    rewrite();
+	out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream(fileName, true) ) );
+    }
+
+// ******* read ****************************************************************
+// reads a record, returns null at the end of the file and throws an 
+// EOFException if the record is truncated. in must support mark.
+    private static Profile read ( DataInputStream in ) throws IOException {
+	in.mark( 1 );
+	if ( in.read() < 0 ) 
+	    return null;
+	in.reset();
+	Profile p = new Profile();
+	p.name = in.readUTF();
+	p.time = in.readLong();
+	p.freqM1 = in.readDouble();
+	p.size = in.readUnsignedShort();
+	if ( p.size > 256 ) 
+	    throw new IOException( "Invalid profile record" );
+	for ( int i=0; i<p.size; i++ ) {
+	    p.steps[i] = in.readUnsignedByte();
+	    p.errorCount[i] = in.readFloat();
+	    p.errorWeight[i] = in.readFloat();
+	    p.maxErrorRate[i] = in.readFloat();
+	}
+	return p;
+    }
+
+// ******* write ***************************************************************
+    private static void write ( DataOutputStream o, Profile p ) throws IOException {
+	o.writeUTF( p.name );
+	o.writeLong( p.time );
+	o.writeDouble( p.freqM1 );
+	o.writeShort( p.size );
+	for ( int i=0; i<p.size; i++ ) {
+	    o.writeByte( p.steps[i] );
+	    o.writeFloat( p.errorCount[i] );
+	    o.writeFloat( p.errorWeight[i] );
+	    o.writeFloat( p.maxErrorRate[i] );
+	}
+    }
+
+// ******* rewrite *************************************************************
+// writes the valid records into a new file
+    private void rewrite () throws IOException {
+	File f = new File( fileName );
+	File tmp = new File( fileName + ".tmp" );
+	DataOutputStream o = new DataOutputStream( new BufferedOutputStream( new FileOutputStream(tmp) ) );
+	try {
+	    for ( Enumeration<Profile> e = profiles.elements(); e.hasMoreElements(); ) 
+		write( o, e.nextElement() );
+	}
+	finally {
+	    o.close();
+	}
+	f.delete();
+	if ( ! tmp.renameTo(f) ) 
+	    throw new IOException( "Cannot rename `" + tmp + "' to `" + f + "'" );
+    }
+
+// ******* load ****************************************************************
+// restores the profile of miner m, returns false if no valid profile exists
+    public synchronized boolean load ( BTCMiner m ) {
+	Profile p = profiles.get( m.profileKey() );
+	if ( p == null || Math.abs(p.freqM1 - m.freqM1) > 1e-6 ) 
+	    return false;
+	for ( int i=0; i<p.size; i++ ) {
+	    int j = p.steps[i];
+	    if ( j > m.freqMaxM ) 
+		continue;
+	    m.errorCount[j] = p.errorCount[i];
+	    m.errorWeight[j] = p.errorWeight[i];
+	    m.maxErrorRate[j] = p.maxErrorRate[i];
+	    m.errorRate[j] = m.errorCount[j] / m.errorWeight[j] * Math.min(1.0, m.errorWeight[j]*0.01);
+	}
+	saveTimes.put( m.profileKey(), new Date().getTime() );
+	return true;
+    }
+
+// ******* save ****************************************************************
+// appends the profile of miner m to the file if force is true or if the last 
+// save is longer than saveInterval ago
+    public synchronized void save ( BTCMiner m, boolean force ) {
+	long t = new Date().getTime();
+	Long st = saveTimes.get( m.profileKey() );
+	if ( ! force && ( st == null || st + saveInterval > t ) ) {
+	    if ( st == null ) 
+		saveTimes.put( m.profileKey(), t );
+	    return;
+	}
+	saveTimes.put( m.profileKey(), t );
+
+	Profile p = new Profile();
+	p.name = m.profileKey();
+	p.time = t;
+	p.freqM1 = m.freqM1;
+	for ( int i=0; i<=m.freqMaxM && i<256; i++ ) {
+	    if ( m.errorWeight[i] <= 0 ) 
+		continue;
+	    p.steps[p.size] = i;
+	    p.errorCount[p.size] = (float) m.errorCount[i];
+	    p.errorWeight[p.size] = (float) m.errorWeight[i];
+	    p.maxErrorRate[p.size] = (float) m.maxErrorRate[i];
+	    p.size++;
+	}
+	if ( p.size == 0 ) 
+	    return;
+	profiles.put( p.name, p );
+	try {
+	    write( out, p );
+	    out.flush();
+	}
+	catch ( IOException e ) {
+	    m.msg( "Error writing frequency profile to `" + fileName + "': " + e.getLocalizedMessage() );
+	}
+    }
+}
+
+
+// *****************************************************************************
+// ******* WorkSource **********************************************************
+// *****************************************************************************
+// Cluster wide state of the pools. Errors of all miners and of all fetch 
+// threads are counted per pool, i.e. a dead pool is detected once and then 
+// disabled for all FPGA's. By default the pools are used in the order of their
+// definition, disabled pools are skipped. In load balancing mode (-lb) the work 
+// is distributed over all pools by smooth weighted round robin. The configured 
+// weights are reduced on the fly if the latency of a pool is higher than the 
+// latency of the best pool or if shares are rejected or requests fail. Thus a 
+// degraded pool gets less work long before it is disabled. Pools with weight 0 
+// are only used if all other pools are disabled.
+// Work is fetched by the prefetch threads of the WorkQueue's and by the 
+// WorkBroker's. The poll loops only take work from the queues and never wait 
+// for the network.
+class WorkSource {
+    public static boolean balance = false;		// load balancing mode
+    public static double[] weight = new double[BTCMiner.maxRpcCount];
+    public static double latencyOffset = 100;		// in ms, latencies are compared after adding this offset
+    public static double alpha = 0.05;			// weight of a new value in the moving averages 
+
+    private static int[] ioErrorCount = new int[BTCMiner.maxRpcCount];
+    private static long[] disableTime = new long[BTCMiner.maxRpcCount];
+
+    // load balancing
+    private static double[] current = new double[BTCMiner.maxRpcCount];	// state of the weighted round robin
+    private static double[] latency = new double[BTCMiner.maxRpcCount];	// moving averages of the request times in ms, 0 if unknown
+    private static double[] rejectRate = new double[BTCMiner.maxRpcCount];
+    private static double[] errorRate = new double[BTCMiner.maxRpcCount];
+    private static long[] selected = new long[BTCMiner.maxRpcCount];
+
+    static {
+	for ( int i=0; i<weight.length; i++ ) 
+	    weight[i] = 1.0;
+    }
+
+// ******* maxIoErrorCount *****************************************************
+// number of I/O errors after which a pool is disabled
+    public static int maxIoErrorCount () {
+	return (int) Math.round( (BTCMiner.rpcCount > 1 ? 2 : 4)*BTCMiner.connectionEffort );
+    }
+
+// ******* ioDisableTime *******************************************************
+// in s
+    public static int ioDisableTime () {
+	return BTCMiner.rpcCount > 1 ? 60 : 30;
+    }
+
+// ******* disabled ************************************************************
+    public static boolean disabled ( int rpc ) {
+	return disableTime[rpc] > new Date().getTime();
+    }
+
+// ******* selectPool **********************************************************
+// returns the pool from which the next work unit is fetched or -1 if all pools 
+// are disabled
+    public static synchronized int selectPool () {
+	int i = balance ? balancedPool() : -1;
+	if ( i < 0 ) {
+	    long t = new Date().getTime();
+	    i = 0;
+	    while ( i<BTCMiner.rpcCount && (disableTime[i]>t) ) 
+		i++;
+	    if ( i >= BTCMiner.rpcCount ) 
+		return -1;
+	}
+	selected[i]++;
+	return i;
+    }
+
+// ******* balancedPool ********************************************************
+// smooth weighted round robin: the effective weights are added to the current
+// values, the pool with the highest value is selected and its value is reduced 
+// by the sum of the weights
+    private static int balancedPool () {
+	double sum = 0;
+	int best = -1;
+	for ( int i=0; i<BTCMiner.rpcCount; i++ ) {
+	    double w = disabled(i) ? 0 : effectiveWeight(i);
+	    if ( w <= 0 ) 
+		continue;
+	    current[i] += w;
+	    sum += w;
+	    if ( best < 0 || current[i] > current[best] ) 
+		best = i;
+	}
+	if ( best >= 0 )
+	    current[best] -= sum;
+	return best;
+    }
+
+// ******* effectiveWeight *****************************************************
+// configured weight, adjusted by latency, reject rate and error rate
+    public static double effectiveWeight ( int rpc ) {
+	double l = 0;
+	for ( int i=0; i<BTCMiner.rpcCount; i++ ) 
+	    if ( latency[i] > 0 && ! disabled(i) && (l == 0 || latency[i] < l) ) 
+		l = latency[i];
+	double q = latency[rpc] > 0 ? (l + latencyOffset) / (latency[rpc] + latencyOffset) : 1.0;
+	return weight[rpc] * q * Math.max( 0.05, 1.0 - 4*(rejectRate[rpc] + errorRate[rpc]) );
+    }
+
+// ******* success *************************************************************
+// called after a successful request to pool rpc, t0 is the start time of the 
+// request (from System.nanoTime()) or 0 if unknown
+    public static void success ( int rpc ) {
+	success( rpc, 0 );
+    }
+
+    public static synchronized void success ( int rpc, long t0 ) {
+	ioErrorCount[rpc] = 0;
+	errorRate[rpc] *= 1 - alpha;
+	if ( t0 != 0 ) {
+	    double t = (System.nanoTime() - t0) * 1e-6;
+	    latency[rpc] = latency[rpc] > 0 ? latency[rpc] + alpha*(t - latency[rpc]) : t;
+	}
+    }
+
+// ******* submitted ***********************************************************
+// called if a share has been submitted to pool rpc
+    public static synchronized void submitted ( int rpc, long t0, boolean rejected ) {
+	success( rpc, t0 );
+	rejectRate[rpc] += alpha * ( (rejected ? 1 : 0) - rejectRate[rpc] );
+    }
+
+// ******* submitFailed ********************************************************
+// called if the submission of a share failed; submissions are retried, i.e. 
+// only the error rate is updated
+    public static synchronized void submitFailed ( int rpc ) {
+	errorRate[rpc] += alpha * ( 1 - errorRate[rpc] );
+    }
+
+// ******* failed **************************************************************
+// called if a request to pool rpc failed; the pool is disabled after 
+// maxIoErrorCount I/O errors or after a single invalid response
+    public static synchronized void failed ( int rpc, Exception e, BTCMiner m ) {
+	if ( disabled(rpc) ) 
+	    return;
+	errorRate[rpc] += alpha * ( 1 - errorRate[rpc] );
+	if ( e instanceof IOException ) {
+	    ioErrorCount[rpc]++;
+	    if ( ioErrorCount[rpc] >= maxIoErrorCount() ) 
+		disable( rpc, ioDisableTime(), e, m );
+	    else 
+		m.dmsg( "Warning: " + e.getLocalizedMessage() + ": Request to " + BTCMiner.rpcurl[rpc] + " failed" );
+	}
+	else {
+	    disable( rpc, 60, e, m );
+	}
+    }
+
+// ******* disable *************************************************************
+    private static void disable ( int rpc, int s, Exception e, BTCMiner m ) {
+	m.msg( "Error: " + e.getLocalizedMessage() + ": Disabling URL " + BTCMiner.rpcurl[rpc] + " for " + s + "s" );
+	disableTime[rpc] = new Date().getTime() + s*1000L;
+	ioErrorCount[rpc] = 0;
+	Metrics.counter( "pool_disabled", "pool", BTCMiner.rpcurl[rpc] ).inc();
+    }
+
+// ******* printInfo ***********************************************************
+// prints the state of the load balancing
+    public static synchronized void printInfo () {
+	if ( ! balance ) 
+	    return;
+	long n = 0;
+	for ( int i=0; i<BTCMiner.rpcCount; i++ ) 
+	    n += selected[i];
+	for ( int i=0; i<BTCMiner.rpcCount; i++ ) 
+	    BTCMiner.printMsg2( BTCMiner.rpcurl[i] + ": weight=" + String.format("%.2f", weight[i]) 
+		+ ( disabled(i) ? " (disabled)" : " (effective: " + String.format("%.2f", effectiveWeight(i)) + ")" ) 
+		+ ",  work=" + String.format("%.1f", n > 0 ? selected[i]*100.0/n : 0.0) + "%"
+		+ ",  latency=" + String.format("%.1f", latency[i]) + "ms"
+		+ ",  rejectRate=" + String.format("%.2f", rejectRate[i]*100) + "%"
+		+ ",  errorRate=" + String.format("%.2f", errorRate[i]*100) + "%" );
+    }
+}
+
+
+// *****************************************************************************
+// ******* WorkQueue ***********************************************************
+// *****************************************************************************
+// Work prefetch queue of a miner. A few shared threads fetch the work in advance
+// such that new work can be sent to the FPGA without waiting for the pool. 
+// The miner refills the queue shortly before it needs new work (see 
+// BTCMiner.prefetchWork). Stale work (fetched before the last new block, queued 
+// longer than maxAge or from a disabled pool) is discarded. If the queue runs 
+// empty the miner continues with its old work until the requested work arrives. 
+// Then the poll loops are rescheduled (see PollLoop.rescheduleAll).
+class WorkQueue {
+    public static int prefetch = 1;		// number of work units fetched in advance, 0 disables prefetching
+    public static int fetchThreads = 4;
+    public static long maxAge = 10000;		// in ms, queued work units older than this are discarded, should be clearly shorter than maxPollInterval
+
+    private static ExecutorService executor = null;
+    private static Vector<WorkQueue> queues = new Vector<WorkQueue>();
+
+    private BTCMiner miner;
+    private LinkedList<WorkUnit> units = new LinkedList<WorkUnit>();
+    private int pending = 0;		// number of running fetches
+    private boolean waiting = false;	// true if the miner waits for work
+
+// ******* constructor *********************************************************
+    public WorkQueue ( BTCMiner m ) {
+	miner = m;
+	queues.add( this );
+    }
+
+// ******* executor ************************************************************
+    private static synchronized ExecutorService executor () {
+	if ( executor == null ) {
+	    executor = Executors.newFixedThreadPool( fetchThreads, new ThreadFactory() {
+		public Thread newThread ( Runnable r ) {
+		    Thread t = new Thread( r, "work prefetch" );
+		    t.setDaemon( true );
+		    return t;
+		}
+	    } );
+	}
+	return executor;
+    }
+
+// ******* poll ****************************************************************
+// returns the next valid work unit or null if the queue is empty
+    public synchronized WorkUnit poll () {
+	expire();
+	return units.size() > 0 ? units.removeFirst() : null;
+    }
+
+// ******* expire **************************************************************
+// removes the stale work units
+    private synchronized void expire () {
+	long t = new Date().getTime();
+	for ( Iterator<WorkUnit> i = units.iterator(); i.hasNext(); ) {
+	    WorkUnit w = i.next();
+	    if ( w.newCount < BTCMiner.newBlockMonitor.newCount || w.queueTime + maxAge <= t || WorkSource.disabled(w.rpcNum) )
+		i.remove();
+	}
+    }
+
+// ******* take ****************************************************************
+// returns the next valid work unit; if the queue is empty work is requested 
+// and null is returned, i.e. the caller never waits for the pool
+    public synchronized WorkUnit take () {
+	WorkUnit w = poll();
+	if ( w == null ) {
+	    refill( Math.max(prefetch, 1) );
+	    w = poll();			// the WorkBroker may deliver from its stock
+	}
+	waiting = w == null;
+	return w;
+    }
+
+// ******* refill **************************************************************
+// starts fetches until n (default: prefetch) work units are available or pending
+// work from getwork pools is requested from the WorkBroker of the pool
+    public void refill () {
+	refill( prefetch );
+    }
+
+    public synchronized void refill ( int n ) {
+	expire();
+	while ( units.size() + pending < n ) {
+	    int i = WorkSource.selectPool();
+	    if ( i < 0 ) 
+		break;
+	    pending += 1;
+	    if ( WorkBroker.enabled(i) ) 
+		WorkBroker.get( i ).request( this );
+	    else 
+		fetchLater( i );
+	}
+    }
+
+// ******* fetchLater **********************************************************
+// fetches a work unit from pool rpc using a single request in one of the 
+// prefetch threads
+    public void fetchLater ( final int rpc ) {
+	executor().execute( new Runnable() {
+	    public void run () {
+		fetch( rpc );
+	    }
+	} );
+    }
+
+// ******* fetch ***************************************************************
+    private void fetch ( int rpc ) {
+	WorkUnit w = null;
+	int i = WorkSource.disabled(rpc) ? WorkSource.selectPool() : rpc;
+	try {
+	    if ( i >= 0 && ! miner.suspended )
+		w = miner.fetchWork( i );
+	}
+	catch ( Exception e ) {
+	    miner.dmsg( "Prefetching work from " + BTCMiner.rpcurl[i] + " failed: " + e.getLocalizedMessage() );
+	    WorkSource.failed( i, e, miner );
+	}
+	deliver( w );
+    }
+
+// ******* deliver *************************************************************
+// result of a fetch, w is null if the fetch failed
+    public void deliver ( WorkUnit w ) {
+	boolean b = false;
+	synchronized ( this ) {
+	    pending -= 1;
+	    if ( w != null ) {
+		w.queueTime = new Date().getTime();
+		units.add( w );
+		b = waiting;
+		waiting = false;
+	    }
+	}
+	if ( b ) {
+	    miner.nextPollTime = 0;
+	    PollLoop.rescheduleAll();
+	}
+    }
+
+// ******* miner ***************************************************************
+    public BTCMiner miner () {
+	return miner;
+    }
+
+// ******* flush ***************************************************************
+    public synchronized void flush () {
+	units.clear();
+    }
+
+// ******* flushAll ************************************************************
+// flushes all queues, called if a new block is detected
+    public static void flushAll () {
+	synchronized ( queues ) {
+	    for ( int i=0; i<queues.size(); i++ ) 
+		queues.elementAt(i).flush();
+	}
+    }
+}
+
+
+// *****************************************************************************
+// ******* WorkBroker **********************************************************
+// *****************************************************************************
+// Fetches the work for the prefetch queues of all miners from a getwork pool 
+// by JSON-RPC batch requests, i.e. one HTTP request returns up to maxBatch work 
+// units. Requests of the queues which arrive within batchDelay are combined.
+// A batch also contains as many additional work units as have been requested 
+// during the last maxAge/2 ms. These units are kept in a stock from which the 
+// next requests are served without a round trip to the pool. Thus the number 
+// of requests to the pool is reduced by up to maxBatch.
+// There is one broker (and one thread) per pool. Support of batch requests is 
+// detected with the first request. If the pool does not support them, work is 
+// fetched by single requests as before.
+class WorkBroker implements Runnable {
+    public static int maxBatch = 16;		// maximum number of requests per batch, 1 disables batch requests
+    public static long batchDelay = 10;		// in ms
+    public static long maxAge = 10000;		// work units in the stock older than this (in ms) are discarded
+
+    private static WorkBroker[] brokers = new WorkBroker[BTCMiner.maxRpcCount];
+    private static boolean[] unsupported = new boolean[BTCMiner.maxRpcCount];	// pools which do not support batch requests
+    private static boolean[] supported = new boolean[BTCMiner.maxRpcCount];	// pools which answered a batch request
+
+    private int rpc;
+    private LinkedList<WorkQueue> waiting = new LinkedList<WorkQueue>();
+    private LinkedList<WorkUnit> stock = new LinkedList<WorkUnit>();
+    private LinkedList<Long> history = new LinkedList<Long>();	// times of the requests during the last maxAge/2 ms
+    private Counter batches, units, stockHits;
+
+// ******* constructor *********************************************************
+    private WorkBroker ( int r ) {
+	rpc = r;
+	batches = Metrics.counter( "getwork_batches", "pool", BTCMiner.rpcurl[rpc] );
+	units = Metrics.counter( "getwork_batch_units", "pool", BTCMiner.rpcurl[rpc] );
+	stockHits = Metrics.counter( "getwork_stock_hits", "pool", BTCMiner.rpcurl[rpc] );
+	Thread t = new Thread( this, "work broker " + rpc );
+	t.setDaemon( true );
+	t.start();
+    }
+
+// ******* enabled *************************************************************
+// returns true if batch requests are used for pool rpc
+    public static boolean enabled ( int rpc ) {
+	return maxBatch > 1 && ! unsupported[rpc] && ! StratumClient.isStratum(BTCMiner.rpcurl[rpc]);
+    }
+
+// ******* get *****************************************************************
+    public static synchronized WorkBroker get ( int rpc ) {
+	if ( brokers[rpc] == null ) 
+	    brokers[rpc] = new WorkBroker( rpc );
+	return brokers[rpc];
+    }
+
+// ******* response ************************************************************
+// evaluates the response to a batch request, returns false if the pool does 
+// not support batch requests
+    public static boolean response ( int rpc, JsonRpcReader r, MsgObj m ) {
+	if ( r.batch ) 
+	    supported[rpc] = true;
+	else 
+	    disable( rpc, m );
+	return r.batch;
+    }
+
+// ******* failed **************************************************************
+// called if a batch request failed, batch requests are disabled if the pool 
+// rejects the first batch request
+    public static void failed ( int rpc, Exception e, MsgObj m ) {
+	if ( e instanceof HttpTransport.StatusException && ! supported[rpc] ) 
+	    disable( rpc, m );
+    }
+
+// ******* disable *************************************************************
+    private static void disable ( int rpc, MsgObj m ) {
+	if ( ! unsupported[rpc] ) 
+	    m.msg( "Pool " + BTCMiner.rpcurl[rpc] + " does not support batch requests" );
+	unsupported[rpc] = true;
+    }
+
+// ******* request *************************************************************
+// requests a work unit for q, the result is passed to q.deliver
+    public void request ( WorkQueue q ) {
+	WorkUnit w = null;
+	long t = new Date().getTime();
+	synchronized ( this ) {
+	    history.add( t );
+	    while ( w == null && stock.size() > 0 ) {
+		w = stock.removeFirst();
+		if ( w.newCount < BTCMiner.newBlockMonitor.newCount || w.time + maxAge <= t ) 
+		    w = null;
+	    }
+	    if ( w == null ) {
+		waiting.add( q );
+		notify();
+		return;
+	    }
+	}
+	stockHits.inc();
+	q.deliver( w );
+    }
+
+// ******* batchSize ***********************************************************
+// number of work units to be fetched for n waiting queues
+    private synchronized int batchSize ( int n ) {
+	long t = new Date().getTime() - maxAge/2;
+	while ( history.size() > 0 && history.getFirst() < t ) 
+	    history.removeFirst();
+	return Math.min( maxBatch, Math.max(n, history.size()) );
+    }
+
+// ******* run *****************************************************************
+    public void run () {
+	while ( true ) {
+	    Vector<WorkQueue> v = new Vector<WorkQueue>();
+	    try {
+		synchronized ( this ) {
+		    while ( waiting.size() == 0 ) 
+			wait();
+		}
+		Thread.sleep( batchDelay );
+	    }
+	    catch ( InterruptedException e ) {
+	    }
+	    synchronized ( this ) {
+		while ( waiting.size() > 0 && v.size() < maxBatch ) 
+		    v.add( waiting.removeFirst() );
+	    }
+	    int n = batchSize( v.size() );
+	    if ( n <= 1 || ! enabled(rpc) ) {
+		for ( int i=0; i<v.size(); i++ ) 
+		    v.elementAt(i).fetchLater( rpc );
+	    }
+	    else if ( v.size() > 0 ) {
+		fetch( v, n );
+	    }
+	}
+    }
+
+// ******* fetch ***************************************************************
+// fetches count work units, the units which are not required by the queues 
+// in v are added to the stock
+    private void fetch ( Vector<WorkQueue> v, int count ) {
+	String url = BTCMiner.rpcurl[rpc];
+	BTCMiner m = v.elementAt(0).miner();
+	StringBuffer sb = new StringBuffer( "[" );
+	for ( int i=0; i<count; i++ ) 
+	    sb.append( ( i>0 ? "," : "" ) + "{\"jsonrpc\":\"2.0\",\"id\":" + i + ",\"method\":\"getwork\",\"params\":[]}" );
+	sb.append( "]" );
+
+	int n = 0;
+	try {
+	    long t = System.nanoTime();
+	    HttpResponse r = BTCMiner.httpRequest( m, url, BTCMiner.rpcuser[rpc], BTCMiner.rpcpassw[rpc], sb.toString() );
+	    Metrics.histogram( "getwork_time", "pool", url ).recordSince( t );
+	    JsonRpcReader reader = r.reader();
+	    Vector<JsonRpcResponse> rs = reader.readAll();
+	    if ( ! response(rpc, reader, m) ) {
+		while ( n < v.size() ) 
+		    v.elementAt(n++).fetchLater( rpc );
+		return;
+	    }
+	    batches.inc();
+	    WorkSource.success( rpc, t );
+	    String rollNTime = r.header("X-Roll-NTime");
+	    for ( int i=0; i<rs.size(); i++ ) {
+		JsonRpcResponse j = rs.elementAt(i);
+		if ( ! j.hasData ) 
+		    continue;
+		WorkUnit w = new WorkUnit();
+		w.rpcNum = rpc;
+		w.data = j.data;
+		w.target = j.target;
+		try {
+		    m.completeWork( w, j, rollNTime );
+		}
+		catch ( ParserException e ) {
+		    m.dmsg( "Prefetching work from " + url + " failed: " + e.getLocalizedMessage() );
+		    continue;
+		}
+		units.inc();
+		if ( n < v.size() ) {
+		    WorkQueue q = v.elementAt(n++);
+		    q.deliver( w );
+		}
+		else {
+		    synchronized ( this ) {
+			stock.add( w );
+		    }
+		}
+	    }
+	}
+	catch ( Exception e ) {
+	    failed( rpc, e, m );
+	    m.dmsg( "Prefetching work from " + url + " failed: " + e.getLocalizedMessage() );
+	    if ( enabled(rpc) ) 	// otherwise the pool just rejected the batch request
+		WorkSource.failed( rpc, e, m );
+	}
+	while ( n < v.size() ) 
+	    v.elementAt(n++).deliver( null );
+    }
+}
+
+
+// *****************************************************************************
+// ******* Share ***************************************************************
+// *****************************************************************************
+class Share {
+    public BTCMiner miner;
+    public int rpcNum;
+    public byte[] data = new byte[128];
+    public long time;			// time when the share was found
+    public int tries = 0;
+}
+
+
+// *****************************************************************************
+// ******* SubmitQueue *********************************************************
+// *****************************************************************************
+// Bounded queue of shares which are sent to the pools by a few submit threads.
+// Thus the poll loops do not wait for the pools. Failed submissions are retried 
+// with exponential backoff. If the queue is full the share is submitted by the
+// calling thread. Shares for the same getwork pool which are queued at the 
+// same time are submitted by one batch request (see WorkBroker).
+class SubmitQueue {
+    public static int capacity = 256;
+    public static int threads = 2;
+    public static int maxTries = 5;
+    public static long retryDelay = 1000;	// delay of the first retry in ms, doubled on each further retry
+
+    private static ArrayBlockingQueue<Share> queue = null;
+    private static ScheduledExecutorService retryExecutor = null;
+
+    // metrics per pool, created by start
+    private static Histogram[] submitTime;
+    private static Counter[] submittedShares, rejectedShares, droppedShares, retries, batches;
+
+// ******* start ***************************************************************
+    private static synchronized void start () {
+	if ( queue != null )
+	    return;
+	int n = BTCMiner.rpcCount;
+	submitTime = new Histogram[n];
+	submittedShares = new Counter[n];
+	rejectedShares = new Counter[n];
+	droppedShares = new Counter[n];
+	retries = new Counter[n];
+	batches = new Counter[n];
+	for ( int i=0; i<n; i++ ) {
+	    String u = BTCMiner.rpcurl[i];
+	    submitTime[i] = Metrics.histogram( "submit_time", "pool", u );
+	    submittedShares[i] = Metrics.counter( "shares_submitted", "pool", u );
+	    rejectedShares[i] = Metrics.counter( "shares_rejected", "pool", u );
+	    droppedShares[i] = Metrics.counter( "shares_dropped", "pool", u );
+	    retries[i] = Metrics.counter( "submit_retries", "pool", u );
+	    batches[i] = Metrics.counter( "submit_batches", "pool", u );
+	}
+	queue = new ArrayBlockingQueue<Share>( capacity );
+	for ( int i=0; i<threads; i++ ) {
+	    Thread t = new Thread( "submit " + i ) {
+		public void run () {
+		    while ( true ) {
+			try {
+			    Vector<Share> v = new Vector<Share>();
+			    v.add( queue.take() );
+			    queue.drainTo( v, WorkBroker.maxBatch-1 );
+			    send( v );
+			}
+			catch ( InterruptedException e ) {
+			}
+		    }
+		}
+	    };
+	    t.setDaemon( true );
+	    t.start();
+	}
+	retryExecutor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+	    public Thread newThread ( Runnable r ) {
+		Thread t = new Thread( r, "submit retry" );
+		t.setDaemon( true );
+		return t;
+	    }
+	} );
+    }
+
+// ******* submit **************************************************************
+// queues a copy of the data
+    public static void submit ( BTCMiner m, int rpc, byte[] data ) {
+	start();
+	Share s = new Share();
+	s.miner = m;
+	s.rpcNum = rpc;
+	s.time = new Date().getTime();
+	System.arraycopy( data, 0, s.data, 0, 128 );
+	if ( ! queue.offer( s ) ) {
+	    m.msg( "Warning: Submit queue full" );
+	    send( s );
+	}
+    }
+
+// ******* send ****************************************************************
+// sends shares, the shares for the same pool are sent by batch requests if possible
+    private static void send ( Vector<Share> v ) {
+	while ( v.size() > 0 ) {
+	    int rpc = v.elementAt(0).rpcNum;
+	    Vector<Share> b = new Vector<Share>();
+	    for ( int i=0; i<v.size(); i++ ) {
+		if ( v.elementAt(i).rpcNum == rpc ) {
+		    b.add( v.elementAt(i) );
+		    v.removeElementAt(i--);
+		}
+	    }
+	    if ( b.size() > 1 && WorkBroker.enabled(rpc) ) 
+		sendBatch( rpc, b );
+	    else 
+		for ( int i=0; i<b.size(); i++ ) 
+		    send( b.elementAt(i) );
+	}
+    }
+
+    private static void send ( Share s ) {
+	try {
+	    s.tries += 1;
+	    s.miner.submitShare( s.rpcNum, s.data );
+	}
+	catch ( Exception e ) {
+	    failed( s, e );
+	}
+    }
+
+// ******* sendBatch ***********************************************************
+// sends shares for pool rpc by one batch request
+    private static void sendBatch ( int rpc, Vector<Share> v ) {
+	String url = BTCMiner.rpcurl[rpc];
+	BTCMiner m = v.elementAt(0).miner;
+	boolean[] done = new boolean[v.size()];
+	String[] ds = new String[v.size()];
+	try {
+	    long t = System.nanoTime();
+	    StringBuffer sb = new StringBuffer( "[" );
+	    for ( int i=0; i<v.size(); i++ ) {
+		ds[i] = BTCMiner.dataToHexStr( v.elementAt(i).data );
+		sb.append( ( i>0 ? "," : "" ) + "{\"jsonrpc\":\"2.0\",\"id\":" + i + ",\"method\":\"getwork\",\"params\":[\"" + ds[i] + "\"]}" );
+	    }
+	    sb.append( "]" );
+	    for ( int i=0; i<v.size(); i++ ) 
+		v.elementAt(i).tries += 1;
+	    HttpResponse r = BTCMiner.httpRequest( m, url, BTCMiner.rpcuser[rpc], BTCMiner.rpcpassw[rpc], sb.toString(), false );
+	    JsonRpcReader reader = r.reader();
+	    Vector<JsonRpcResponse> rs = reader.readAll();
+	    if ( ! WorkBroker.response(rpc, reader, m) ) {
+		for ( int i=0; i<v.size(); i++ ) {
+		    v.elementAt(i).tries -= 1;
+		    send( v.elementAt(i) );
+		}
+		return;
+	    }
+	    // logged after the pool accepted the batch, otherwise the shares are logged by submitShare
+	    try {
+		for ( int i=0; i<v.size(); i++ ) 
+		    v.elementAt(i).miner.logShare( rpc, v.elementAt(i).data, ds[i] );
+	    }
+	    catch ( IOException e ) {
+		m.msg( "Error writing share log: " + e.getLocalizedMessage() );
+	    }
+	    batches[rpc].inc();
+	    for ( int i=0; i<rs.size(); i++ ) {
+		JsonRpcResponse j = rs.elementAt(i);
+		int k = -1;
+		try {
+		    k = Integer.parseInt( j.id );
+		}
+		catch ( Exception e ) {
+		}
+		if ( k >= 0 && k < v.size() && ! done[k] ) {
+		    done[k] = true;
+		    submitted( rpc, t, v.elementAt(k).miner.shareRejected(j) );
+		}
+	    }
+	    for ( int i=0; i<v.size(); i++ ) 
+		if ( ! done[i] ) 
+		    failed( v.elementAt(i), new IOException("No response to share in batch request") );
+	}
+	catch ( Exception e ) {
+	    WorkBroker.failed( rpc, e, m );
+	    for ( int i=0; i<v.size(); i++ ) 
+		if ( ! done[i] ) 
+		    failed( v.elementAt(i), e );
+	}
+    }
+
+// ******* submitted ***********************************************************
+// updates the metrics of a submitted share, t0 is the start time (from System.nanoTime()) 
+// must not be called before the first submit
+    public static void submitted ( int rpc, long t0, boolean rejected ) {
+	submitTime[rpc].recordSince( t0 );
+	submittedShares[rpc].inc();
+	if ( rejected ) 
+	    rejectedShares[rpc].inc();
+	WorkSource.submitted( rpc, t0, rejected );
+	TraceMinerDevice.record( WorkRecord.RESULT, rpc, "", rejected ? 1 : 0 );
+    }
+
+// ******* failed **************************************************************
+// retries a share or drops it after maxTries attempts or if it may have been 
+// received by the pool
+    private static void failed ( final Share s, Exception e ) {
+	WorkSource.submitFailed( s.rpcNum );
+	if ( e instanceof MaybeSentException ) {
+	    s.miner.msg( "Error: " + e.getLocalizedMessage() + ": Share may have been submitted, not retrying" );
+	    droppedShares[s.rpcNum].inc();
+	}
+	else if ( s.tries >= maxTries ) {
+	    s.miner.msg( "Error: " + e.getLocalizedMessage() + ": Dropping share after " + s.tries + " attempts" );
+	    droppedShares[s.rpcNum].inc();
+	}
+	else {
+	    long d = retryDelay << (s.tries-1);
+	    s.miner.dmsg( "Warning: " + e.getLocalizedMessage() + ": Retrying submission in " + d + "ms" );
+	    retries[s.rpcNum].inc();
+	    retryExecutor.schedule( new Runnable() {
+		public void run () {
+		    if ( ! queue.offer( s ) ) 
+			send( s );
+		}
+	    }, d, TimeUnit.MILLISECONDS );
+	}
+    }
+
+// ******* timeInfo ************************************************************
+// submit times of all pools 
+    public static String timeInfo () {
+	StringBuffer sb = new StringBuffer();
+	for ( int i=0; i<BTCMiner.rpcCount; i++ ) {
+	    if ( i>0 ) 
+		sb.append( "/" );
+	    sb.append( Metrics.histogram("submit_time", "pool", BTCMiner.rpcurl[i]).snapshot().info() );
+	}
+	return sb.toString() + ( queue!=null && queue.size() > 0 ? " (" + queue.size() + " queued)" : "" );
+    }
+
+// ******* printInfo ***********************************************************
+    public static void printInfo () {
+	for ( int i=0; i<BTCMiner.rpcCount; i++ ) {
+	    String u = BTCMiner.rpcurl[i];
+	    long n = Metrics.counter("shares_submitted", "pool", u).get();
+	    long r = Metrics.counter("submit_retries", "pool", u).get();
+	    long d = Metrics.counter("shares_dropped", "pool", u).get();
+	    if ( n + r + d > 0 )
+		BTCMiner.printMsg2( u + ": submitted " + n + " shares, " + Metrics.counter("shares_rejected", "pool", u).get() + " rejected, " + r + " retries, " + d + " dropped,  submit time: " 
+		    + Metrics.histogram("submit_time", "pool", u).snapshot().info() );
+	}
+    }
+}
+
+
+// *****************************************************************************
+// ******* Counter *************************************************************
+// *****************************************************************************
+class Counter {
+    public final String name;
+    public final String tags;		// in the format k1="v1",k2="v2"
+    private AtomicLong value = new AtomicLong();
+
+    Counter ( String n, String t ) {
+	name = n;
+	tags = t;
+    }
+
+// ******* inc *****************************************************************
+    public void inc () {
+	value.incrementAndGet();
+    }
+
+// ******* add *****************************************************************
+    public void add ( long n ) {
+	value.addAndGet( n );
+    }
+
+// ******* get *****************************************************************
+    public long get () {
+	return value.get();
+    }
+}
+
+
+// *****************************************************************************
+// ******* Histogram ***********************************************************
+// *****************************************************************************
+// Lock free histogram of durations (in us) with logarithmic buckets: values
+// below 16 are counted exactly, larger values in 8 buckets per power of two, 
+// i.e. with a resolution of 12.5%. The values are also counted exactly per 
+// interval between the fixed bounds which are exported by the MetricsServer.
+class Histogram {
+    public static final int buckets = 16 + 60*8;
+    public static final long[] bounds = { 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000 };	// in us
+
+    public final String name;
+    public final String tags;		// in the format k1="v1",k2="v2"
+    private AtomicLongArray counts = new AtomicLongArray( buckets );
+    private AtomicLongArray boundCounts = new AtomicLongArray( bounds.length );	// values in (bounds[j-1], bounds[j]]
+    private AtomicLong count = new AtomicLong();
+    private AtomicLong sum = new AtomicLong();
+    private AtomicLong max = new AtomicLong();
+
+    Histogram ( String n, String t ) {
+	name = n;
+	tags = t;
+    }
+
+// ******* bucket **************************************************************
+    public static int bucket ( long v ) {
+	if ( v < 16 )
+	    return v < 0 ? 0 : (int) v;
+	int e = 63 - Long.numberOfLeadingZeros(v);
+	return Math.min( 16 + (e-4)*8 + (int) ((v >> (e-3)) & 7), buckets-1 );
+    }
+
+// ******* lowerBound **********************************************************
+// smallest value of a bucket
+    public static long lowerBound ( int i ) {
+	if ( i < 16 )
+	    return i;
+	int e = (i-16)/8 + 4;
+	return (8L + (i-16)%8) << (e-3);
+    }
+
+// ******* record **************************************************************
+    public void record ( long v ) {
+	counts.incrementAndGet( bucket(v) );
+	int j = Arrays.binarySearch( bounds, v );
+	if ( j < 0 ) 
+	    j = -j-1;
+	if ( j < bounds.length ) 
+	    boundCounts.incrementAndGet( j );
+	count.incrementAndGet();
+	sum.addAndGet( v );
+	long m;
+	while ( (m = max.get()) < v && ! max.compareAndSet(m, v) ) ;
+    }
+
+// ******* recordSince *********************************************************
+// records the time since t0 (from System.nanoTime())
+    public void recordSince ( long t0 ) {
+	record( (System.nanoTime() - t0) / 1000 );
+    }
+
+// ******* snapshot ************************************************************
+    public HistogramSnapshot snapshot () {
+	HistogramSnapshot s = new HistogramSnapshot();
+	for ( int i=0; i<bounds.length; i++ ) 	// before counts, i.e. the bound counts never exceed the total
+	    s.boundCounts[i] = boundCounts.get(i);
+	for ( int i=0; i<buckets; i++ ) 
+	    s.counts[i] = counts.get(i);
+	s.count = count.get();
+	s.sum = sum.get();
+	s.max = max.get();
+	return s;
+    }
+}
+
+
+// *****************************************************************************
+// ******* HistogramSnapshot ***************************************************
+// *****************************************************************************
+// Snapshots are not destructive. The statistics of an interval are obtained 
+// as difference of two snapshots.
+class HistogramSnapshot {
+    public long[] counts = new long[Histogram.buckets];
+    public long[] boundCounts = new long[Histogram.bounds.length];
+    public long count = 0;
+    public long sum = 0;
+    public long max = 0;		// maximum since start (not available for differences)
+
+// ******* add *****************************************************************
+    public void add ( HistogramSnapshot s ) {
+	for ( int i=0; i<counts.length; i++ ) 
+	    counts[i] += s.counts[i];
+	for ( int i=0; i<boundCounts.length; i++ ) 
+	    boundCounts[i] += s.boundCounts[i];
+	count += s.count;
+	sum += s.sum;
+	max = Math.max( max, s.max );
+    }
+
+// ******* minus ***************************************************************
+// returns the difference to an older snapshot
+    public HistogramSnapshot minus ( HistogramSnapshot s ) {
+	HistogramSnapshot r = new HistogramSnapshot();
+	for ( int i=0; i<counts.length; i++ ) 
+	    r.counts[i] = counts[i] - s.counts[i];
+	for ( int i=0; i<boundCounts.length; i++ ) 
+	    r.boundCounts[i] = boundCounts[i] - s.boundCounts[i];
+	r.count = count - s.count;
+	r.sum = sum - s.sum;
+	r.max = max;
+	return r;
+    }
+
+// ******* mean ****************************************************************
+    public double mean () {
+	return count > 0 ? (double) sum / count : 0;
+    }
+
+// ******* percentile **********************************************************
+// returns the upper bound of the bucket which contains the p-quantile (0<p<=1)
+    public long percentile ( double p ) {
+	long n = (long) Math.ceil( count * p );
+	long c = 0;
+	for ( int i=0; i<counts.length; i++ ) {
+	    c += counts[i];
+	    if ( c >= n && c > 0 ) 
+		return i+1 < counts.length ? Histogram.lowerBound(i+1) - 1 : max;
+	}
+	return 0;
+    }
+
+// ******* info ****************************************************************
+// mean and 99% quantile in ms
+    public String info () {
+	if ( count <= 0 ) 
+	    return "-";
+	return String.format( "%.1fms (p99: %.1fms)", mean()*0.001, percentile(0.99)*0.001 );
+    }
+}
+
+
+// *****************************************************************************
+// ******* Metrics *************************************************************
+// *****************************************************************************
+// Registry of all counters and histograms. A metric is identified by its name 
+// and its tags which are given as key value pairs, e.g. 
+// Metrics.histogram("getwork_time", "pool", url). 
+class Metrics {
+    private static Hashtable<String,Counter> counters = new Hashtable<String,Counter>();
+    private static Hashtable<String,Histogram> histograms = new Hashtable<String,Histogram>();
+
+// ******* tags ****************************************************************
+    public static String tags ( String... kv ) {
+	StringBuffer sb = new StringBuffer();
+	for ( int i=0; i+1<kv.length; i+=2 ) {
+	    if ( i>0 ) 
+		sb.append(',');
+	    sb.append( kv[i] ).append( "=\"" ).append( kv[i+1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") ).append('"');
+	}
+	return sb.toString();
+    }
+
+// ******* counter *************************************************************
+    public static Counter counter ( String name, String... kv ) {
+	String t = tags(kv);
+	String key = name + "{" + t + "}";
+	synchronized ( counters ) {
+	    Counter c = counters.get( key );
+	    if ( c == null ) {
+		c = new Counter( name, t );
+		counters.put( key, c );
+	    }
+	    return c;
+	}
+    }
+
+// ******* histogram ***********************************************************
+    public static Histogram histogram ( String name, String... kv ) {
+	String t = tags(kv);
+	String key = name + "{" + t + "}";
+	synchronized ( histograms ) {
+	    Histogram h = histograms.get( key );
+	    if ( h == null ) {
+		h = new Histogram( name, t );
+		histograms.put( key, h );
+	    }
+	    return h;
+	}
+    }
+
+// ******* counters ************************************************************
+// returns all counters sorted by name and tags
+    public static Vector<Counter> counters () {
+	TreeMap<String,Counter> m;
+	synchronized ( counters ) {
+	    m = new TreeMap<String,Counter>( counters );
+	}
+	return new Vector<Counter>( m.values() );
+    }
+
+// ******* histograms **********************************************************
+// returns all histograms sorted by name and tags
+    public static Vector<Histogram> histograms () {
+	TreeMap<String,Histogram> m;
+	synchronized ( histograms ) {
+	    m = new TreeMap<String,Histogram>( histograms );
+	}
+	return new Vector<Histogram>( m.values() );
+    }
+
+// ******* sum *****************************************************************
+// sum of all counters with the given name
+    public static long sum ( String name ) {
+	long s = 0;
+	Vector<Counter> v = counters();
+	for ( int i=0; i<v.size(); i++ ) 
+	    if ( v.elementAt(i).name.equals(name) ) 
+		s += v.elementAt(i).get();
+	return s;
+    }
+
+// ******* snapshot ************************************************************
+// merged snapshot of all histograms with the given name
+    public static HistogramSnapshot snapshot ( String name ) {
+	HistogramSnapshot s = new HistogramSnapshot();
+	Vector<Histogram> v = histograms();
+	for ( int i=0; i<v.size(); i++ ) 
+	    if ( v.elementAt(i).name.equals(name) ) 
+		s.add( v.elementAt(i).snapshot() );
+	return s;
+    }
+}
+
+
+// *****************************************************************************
+// ******* MetricsServer *******************************************************
+// *****************************************************************************
+// Exports the metrics in the Prometheus text format at 
+// http://<host>:<port>/metrics. The page is rendered at most once per cacheTime
+// from the metrics registry and from values the poll loops store in the 
+// BTCMiner objects. A scrape never does a USB transfer or waits for a bus lock.
+class MetricsServer {
+    public static int port = 0;			// 0 disables the server
+    public static long cacheTime = 1000;	// in ms
+
+    private static Vector<BTCMiner> miners = null;
+    private static com.sun.net.httpserver.HttpServer server = null;
+    private static byte[] page = null;
+    private static long pageTime = 0;
+
+// ******* start ***************************************************************
+// starts the server (if enabled) and sets the miners to be exported
+    public static void start ( Vector<BTCMiner> v ) {
+	miners = v;
+	if ( port <= 0 || server != null ) 
+	    return;
+	try {
+	    server = com.sun.net.httpserver.HttpServer.create( new InetSocketAddress(port), 0 );
+	    server.createContext( "/metrics", new com.sun.net.httpserver.HttpHandler() {
+		public void handle ( com.sun.net.httpserver.HttpExchange ex ) throws IOException {
+		    byte[] b = page();
+		    ex.getResponseHeaders().set( "Content-Type", "text/plain; version=0.0.4; charset=utf-8" );
+		    ex.sendResponseHeaders( 200, b.length );
+		    OutputStream os = ex.getResponseBody();
+		    os.write( b );
+		    os.close();
+		}
+	    } );
+	    server.start();
+	    BTCMiner.printMsg( "Metrics are available at http://<host>:" + port + "/metrics" );
+	}
+	catch ( IOException e ) {
+	    BTCMiner.printMsg( "Error: Unable to start metrics server on port " + port + ": " + e.getLocalizedMessage() );
+	    server = null;
+	}
+    }
+
+// ******* page ****************************************************************
+    private static synchronized byte[] page () throws IOException {
+	long t = new Date().getTime();
+	if ( page == null || pageTime + cacheTime <= t ) {
+	    page = render( t ).getBytes( "UTF-8" );
+	    pageTime = t;
+	}
+	return page;
+    }
+
+// ******* num *****************************************************************
+    private static String num ( double d ) {
+	return Double.isNaN(d) ? "NaN" : Double.isInfinite(d) ? ( d > 0 ? "+Inf" : "-Inf" ) : Double.toString(d);
+    }
+
+// ******* labels **************************************************************
+// joins two label lists in the format k1="v1",k2="v2"
+    private static String labels ( String a, String b ) {
+	String s = a.length() > 0 && b.length() > 0 ? a + "," + b : a + b;
+	return s.length() > 0 ? "{" + s + "}" : "";
+    }
+
+// ******* type ****************************************************************
+    private static void type ( StringBuffer sb, String name, String type, String help ) {
+	if ( help != null ) 
+	    sb.append( "# HELP " + name + " " + help + "\n" );
+	sb.append( "# TYPE " + name + " " + type + "\n" );
+    }
+
+// ******* render **************************************************************
+    private static String render ( long t ) {
+	StringBuffer sb = new StringBuffer();
+
+	// values of the FPGA's
+	BTCMiner[] ma = new BTCMiner[0];
+	if ( miners != null ) {
+	    synchronized ( miners ) {
+		ma = miners.toArray( ma );
+	    }
+	}
+
+	type( sb, "btcminer_up", "gauge", "1 if the FPGA is running" );
+	for ( int i=0; i<ma.length; i++ ) 
+	    if ( ma[i].metricsTags != null ) 
+		sb.append( "btcminer_up" + labels(ma[i].metricsTags, "") + " " + ( ma[i].fatalError == null && !ma[i].suspended ? 1 : 0 ) + "\n" );
+
+	type( sb, "btcminer_frequency_mhz", "gauge", "Clock frequency" );
+	for ( int i=0; i<ma.length; i++ ) 
+	    if ( ma[i].metricsTags != null ) 
+		sb.append( "btcminer_frequency_mhz" + labels(ma[i].metricsTags, "") + " " + num( (ma[i].freqM+1)*ma[i].freqM1 ) + "\n" );
+
+	type( sb, "btcminer_hash_rate_mhs", "gauge", "Hash rate in MH/s, calculated from frequency and error rate" );
+	for ( int i=0; i<ma.length; i++ ) 
+	    if ( ma[i].metricsTags != null ) 
+		sb.append( "btcminer_hash_rate_mhs" + labels(ma[i].metricsTags, "") + " " + num( ma[i].totalHashRate() ) + "\n" );
+
+	type( sb, "btcminer_submitted_hash_rate_mhs", "gauge", "Hash rate in MH/s, calculated from the submitted shares" );
+	for ( int i=0; i<ma.length; i++ ) 
+	    if ( ma[i].metricsTags != null ) 
+		sb.append( "btcminer_submitted_hash_rate_mhs" + labels(ma[i].metricsTags, "") + " " + num( ma[i].submittedHashRate() ) + "\n" );
+
+	type( sb, "btcminer_error_rate", "gauge", "Error rate per frequency step" );
+	for ( int i=0; i<ma.length; i++ ) {
+	    BTCMiner m = ma[i];
+	    if ( m.metricsTags == null ) 
+		continue;
+	    for ( int j=0; j<=m.freqMaxM; j++ ) 
+		if ( m.errorWeight[j] > 20 ) 
+		    sb.append( "btcminer_error_rate" + labels(m.metricsTags, "freq=\"" + String.format(Locale.US, "%.2f", (j+1)*m.freqM1) + "\"") + " " + num( m.errorRate[j] ) + "\n" );
+	}
+
+	type( sb, "btcminer_temperature_celsius", "gauge", "Temperature of the FPGA, last reading of the sampler" );
+	for ( int i=0; i<ma.length; i++ ) 
+	    if ( ma[i].metricsTags != null && ! Double.isNaN(ma[i].temperature) ) 
+		sb.append( "btcminer_temperature_celsius" + labels(ma[i].metricsTags, "") + " " + num( ma[i].temperature ) + "\n" );
+
+	type( sb, "btcminer_pool_available", "gauge", "1 if the pool is not disabled" );
+	for ( int j=0; j<BTCMiner.rpcCount; j++ ) 
+	    sb.append( "btcminer_pool_available" + labels(Metrics.tags("pool", BTCMiner.rpcurl[j]), "") + " " + ( WorkSource.disabled(j) ? "0" : "1" ) + "\n" );
+
+	if ( WorkSource.balance ) {
+	    type( sb, "btcminer_pool_weight", "gauge", "Effective weight of the pool in load balancing mode" );
+	    for ( int j=0; j<BTCMiner.rpcCount; j++ ) 
+		sb.append( "btcminer_pool_weight" + labels(Metrics.tags("pool", BTCMiner.rpcurl[j]), "") + " " + num( WorkSource.effectiveWeight(j) ) + "\n" );
+	}
+
+	// registry
+	Vector<Counter> cv = Metrics.counters();
+	String last = null;
+	for ( int i=0; i<cv.size(); i++ ) {
+	    Counter c = cv.elementAt(i);
+	    String n = "btcminer_" + c.name + "_total";
+	    if ( ! n.equals(last) ) 
+		type( sb, n, "counter", null );
+	    last = n;
+	    sb.append( n + labels(c.tags, "") + " " + c.get() + "\n" );
+	}
+
+	Vector<Histogram> hv = Metrics.histograms();
+	last = null;
+	for ( int i=0; i<hv.size(); i++ ) {
+	    Histogram h = hv.elementAt(i);
+	    String n = "btcminer_" + h.name + "_seconds";
+	    if ( ! n.equals(last) ) 
+		type( sb, n, "histogram", null );
+	    last = n;
+	    HistogramSnapshot s = h.snapshot();
+	    long c = 0;
+	    for ( int j=0; j<Histogram.bounds.length; j++ ) {
+		c += s.boundCounts[j];
+		String le = java.math.BigDecimal.valueOf( Histogram.bounds[j], 6 ).stripTrailingZeros().toPlainString();	// in s
+		sb.append( n + "_bucket" + labels(h.tags, "le=\"" + le + "\"") + " " + c + "\n" );
+	    }
+	    c = 0;
+	    for ( int k=0; k<Histogram.buckets; k++ ) 
+		c += s.counts[k];
+	    sb.append( n + "_bucket" + labels(h.tags, "le=\"+Inf\"") + " " + c + "\n" );
+	    sb.append( n + "_sum" + labels(h.tags, "") + " " + num( s.sum * 1e-6 ) + "\n" );
+	    sb.append( n + "_count" + labels(h.tags, "") + " " + c + "\n" );
+	}
+
+	return sb.toString();
+    }
+}
+
+
+// *****************************************************************************
+// ******* LogString ***********************************************************
+// *****************************************************************************
+class LogString {
+    public Date time;
+    public String msg;
+    
+    public LogString(String s) {
+	time = new Date();
+	msg = s;
+    }
+}
+
+
+// *****************************************************************************
+// ******* PollLoop ************************************************************
+// *****************************************************************************
+// The FPGA's are polled when they are expected to require it (see 
+// BTCMiner.pollInterval) and not in a fixed cadence. The loop sleeps until the
+// next deadline or until it is woken up because a new block was detected.
+class PollLoop {
+    public static boolean scanMode = false;
+
+    private Vector<BTCMiner> v;
+    public static final long minQueryInterval = 250;
+    public static long maxQueryInterval = 1000;
+
+    private static Vector<PollLoop> loops = new Vector<PollLoop>();
+    private Lock lock;					// guards v during a pass
+    private ReentrantLock wakeLock = new ReentrantLock();	// guards woken and rescheduled
+    private Condition wake = wakeLock.newCondition();
+    private boolean woken = false;
+    private boolean rescheduled = false;
+
+    // metrics and the values at the last printInfo
+    private Histogram loopTime, usbTime;	// time of the polls of a pass
+    private Counter polls;
+    private HistogramSnapshot lastLoopTime = new HistogramSnapshot();
+    private HistogramSnapshot lastUsbTime = new HistogramSnapshot();
+    private long lastPolls = 0;
+    private long lastOverflows = 0;
+    private long lastInfoTime = new Date().getTime();
+
+// ******* constructor *********************************************************
+    public PollLoop ( Vector<BTCMiner> pv ) {
+	this( pv, "main", new ReentrantLock() );
+    }
+
+    public PollLoop ( Vector<BTCMiner> pv, String name, Lock pl ) {
+	v = pv;
+	lock = pl;
+	loopTime = Metrics.histogram( "poll_time", "loop", name );
+	usbTime = Metrics.histogram( "poll_usb_time", "loop", name );
+	polls = Metrics.counter( "polls", "loop", name );
+    }
+
+// ******* wakeup **************************************************************
+// polls all FPGA's immediately
+    public void wakeup () {
+	wakeLock.lock();
+	try {
+	    woken = true;
+	    wake.signalAll();
+	}
+	finally {
+	    wakeLock.unlock();
+	}
+    }
+
+// ******* wakeupAll ***********************************************************
+// wakes up all poll loops, called if a new block is detected
+    public static void wakeupAll () {
+	synchronized ( loops ) {
+	    for ( int i=0; i<loops.size(); i++ ) 
+		loops.elementAt(i).wakeup();
+	}
+    }
+
+// ******* reschedule **********************************************************
+// recalculates the poll times, e.g. if nextPollTime of an FPGA has been reset
+    public void reschedule () {
+	wakeLock.lock();
+	try {
+	    rescheduled = true;
+	    wake.signalAll();
+	}
+	finally {
+	    wakeLock.unlock();
+	}
+    }
+
+// ******* rescheduleAll *******************************************************
+// reschedules all poll loops, called if work for a waiting FPGA arrives
+    public static void rescheduleAll () {
+	synchronized ( loops ) {
+	    for ( int i=0; i<loops.size(); i++ ) 
+		loops.elementAt(i).reschedule();
+	}
+    }
+
+	
+// ******* run *****************************************************************
+    public void run ( ) {
+	loops.add( this );
+	while ( v.size()>0 ) {
+	    long t0 = new Date().getTime();
+	    long tu = 0;
+	    long next = t0 + maxQueryInterval;
+	    int polled = 0;
+
+	    boolean all;
+	    wakeLock.lock();
+	    try {
+		all = woken;
+		woken = false;
+		rescheduled = false;
+	    }
+	    finally {
+		wakeLock.unlock();
+	    }
+
+	    if ( ! scanMode ) {
+		lock.lock();
+		try {
+		    for ( int i=v.size()-1; i>=0; i-- ) {
+			BTCMiner m = v.elementAt(i);
+
+			if ( ! all && m.nextPollTime > t0 ) {
+			    next = Math.min( next, m.nextPollTime );
+			    continue;
+			}
+			polled += 1;
+			m.usbTime = 0;
+			
+			try { 
+			    if ( ! m.suspended ) {
+				if ( m.checkUpdate() && m.getWork() ) { // getwork calls getNonces
+			    	    m.dmsg("Got new work");
+			    	    m.sendData();
+				}
+				else {
+			    	    m.getNonces();
+				}
+				m.updateFreq();
+				m.prefetchWork();
+				m.printInfo(false);
+			    }
+			}
+			catch ( IOException e ) {
+			    WorkSource.failed( m.rpcNum, e, m );
+			}
+			catch ( ParserException e ) {
+			    WorkSource.failed( m.rpcNum, e, m );
+			}
+			catch ( NumberFormatException e ) {
+			    WorkSource.failed( m.rpcNum, e, m );
+			}
+			catch ( IndexOutOfBoundsException e ) {
+			    WorkSource.failed( m.rpcNum, e, m );
+			}
+			catch ( Exception e ) {
+    			    m.msg("Error: "+e.getLocalizedMessage()+": Disabling device");
+    			    m.fatalError = "Error: "+e.getLocalizedMessage()+": Device disabled since " + BTCMiner.dateFormat.format( new Date() );
+    			    v.removeElementAt(i);
+    			    m.close();
+			}
+
+			m.nextPollTime = new Date().getTime() + Math.round( m.pollInterval() / TraceReplay.speed );
+			next = Math.min( next, m.nextPollTime );
+			tu += m.usbTime;
+
+    			
+    			if ( ! m.clusterMode ) {
+    			    BTCMiner.newBlockMonitor.print();
+    			}
+    		    }
+		}
+		finally {
+		    lock.unlock();
+		}
+
+		if ( polled > 0 ) {
+		    polls.add( polled );
+		    loopTime.record( (new Date().getTime() - t0) * 1000 );
+		    usbTime.record( tu * 1000 );
+		}
+	    }
+	    else {
+		next = t0 + minQueryInterval;
+	    }
+
+	    wakeLock.lock();
+	    try {
+		t0 = next - new Date().getTime();
+		if ( t0 > 5 && ! woken && ! rescheduled ) {
+		    try {
+			wake.await( t0, TimeUnit.MILLISECONDS );
+		    }
+		    catch ( InterruptedException e) {
+		    }	 
+		}
+	    }
+	    finally {
+		wakeLock.unlock();
+	    }
+	}
+	loops.remove( this );
+    }
+
+// ******* printInfo ***********************************************************
+// prints the statistics since the last call
+    public void printInfo( String name ) {
+	long oc = 0;
+	int fc=0, rc=0;
+	for ( int i=v.size()-1; i>=0; i-- ) {
+	    BTCMiner m = v.elementAt(i);
+	    if ( m.overflows != null ) 
+		oc += m.overflows.get();
+	    fc += m.fetchedCount;
+	    rc += m.rolledCount;
+	}
+
+	long t = new Date().getTime();
+	HistogramSnapshot lt = loopTime.snapshot();
+	HistogramSnapshot ut = usbTime.snapshot();
+	HistogramSnapshot dlt = lt.minus( lastLoopTime );
+	HistogramSnapshot dut = ut.minus( lastUsbTime );
+	long p = polls.get();
+	String pi = p > lastPolls ? Math.round( (double) v.size() * (t - lastInfoTime) / (p - lastPolls) ) + "ms" : "-";
+	long doc = oc - lastOverflows;
+	lastLoopTime = lt;
+	lastUsbTime = ut;
+	lastPolls = p;
+	lastOverflows = oc;
+	lastInfoTime = t;
+	    
+	BTCMiner.printMsg2(name + ": poll loop time: " + dlt.info() + " (USB: " + Math.round(dut.mean()*0.001) + "ms network: " + Math.round((dlt.mean()-dut.mean())*0.001) + "ms)   poll interval: " + pi + "   getwork time: " 
+		+  Metrics.snapshot("getwork_time").info() + ( rc > 0 ? " (" + Math.round(rc*100.0/(rc+fc)) + "% rolled)" : "" ) + "  submit time: " +  SubmitQueue.timeInfo() );
+	if ( doc > 0 )
+	    BTCMiner.printMsg( name + ": Warning: " + doc + " overflows occured. This is usually caused by a slow network connection." );
+    }
+}
+
+
+// *****************************************************************************
+// ******* MinerDevice *********************************************************
+// *****************************************************************************
+// Hardware interface of a BTCMiner, i.e. of one FPGA. The methods correspond
+// to the vendor commands / requests 0x80 to 0x84 of the firmware.
+interface MinerDevice {
+    // vendor command 0x80: send midstate and data
+    public void sendData ( byte[] buf, int length ) throws UsbException;
+
+    // vendor request 0x81: read golden nonces, nonces and hash values
+    public void readNonces ( byte[] buf, int length ) throws UsbException;
+
+    // vendor request 0x82: read the 64 bytes BTCMiner descriptor
+    public void readDescriptor ( byte[] buf ) throws UsbException;
+
+    // vendor command 0x83: set frequency multiplier
+    public void setFreq ( int m ) throws UsbException;
+
+    // vendor command 0x84: suspend
+    public void suspend ( ) throws UsbException;
+
+    public double tempSensorRead ( ) throws Exception;
+
+    public void resetFpga ( ) throws Exception;
+
+    public String snString ( );
+
+    public String busName ( );
+
+    public int devNum ( );
+}
+
+
+// *****************************************************************************
+// ******* ZtexMinerDevice *****************************************************
+// *****************************************************************************
+// USB transfers are serialized per bus. All FPGA's of a board are connected to 
+// the same bus, i.e. this also protects the FPGA selection. The FPGA's are also 
+// selected and configured through this class (see selectFpga, configureFpga).
+class ZtexMinerDevice implements MinerDevice {
+    private static Hashtable<String,ReentrantLock> busLocks = new Hashtable<String,ReentrantLock>();
+    private static Hashtable<Ztex1v1,Board> boards = new Hashtable<Ztex1v1,Board>();
+
+    // USB statistics, values at the last printInfo
+    private static long lastTransfers = 0;
+    private static long lastSavedTransfers = 0;
+    private static long lastInfoTime = new Date().getTime();
+
+    private Ztex1v1 ztex;
+    private int fpgaNum;
+    private ReentrantLock busLock;
+    private Board board;
+    private Counter transfers;
+    private Counter savedTransfers;	// FPGA selections that have been skipped
+
+    // state of a board, guarded by the bus lock
+    private static class Board {
+	int fpgas = 2;			// number of FPGA's
+	int selected = -1;		// selected FPGA, -1 if unknown
+    }
+
+// ******* constructor *********************************************************
+    public ZtexMinerDevice ( Ztex1v1 pZtex, int pFpgaNum ) {
+	ztex = pZtex;
+	fpgaNum = pFpgaNum;
+	synchronized ( busLocks ) {
+	    busLock = busLocks.get( busName() );
+	    if ( busLock == null ) {
+		busLock = new ReentrantLock();
+		busLocks.put( busName(), busLock );
+	    }
+	    board = boards.get( ztex );
+	    if ( board == null ) {
+		board = new Board();
+		try {
+		    board.fpgas = ztex.numberOfFpgas();
+		}
+		catch ( Exception e ) {
+		}
+		boards.put( ztex, board );
+	    }
+	}
+	transfers = Metrics.counter( "usb_transfers", "bus", busName() );
+	savedTransfers = Metrics.counter( "usb_selections_saved", "bus", busName() );
+    }
+
+// ******* select **************************************************************
+// selects the FPGA if it is not already selected, must be called with bus lock
+    private void select () throws UsbException {
+	if ( board.selected == fpgaNum ) {
+	    if ( board.fpgas > 1 ) 
+		savedTransfers.inc();
+	    return;
+	}
+	board.selected = -1;
+	try {
+	    ztex.selectFpga(fpgaNum);
+	    if ( board.fpgas > 1 ) 
+		transfers.inc();
+	    board.selected = fpgaNum;
+	}
+	catch ( InvalidFirmwareException e )  {
+	    // shouldn't occur
+	}
+    }
+
+// ******* selectFpga **********************************************************
+    public void selectFpga () throws UsbException {
+	busLock.lock();
+	try {
+	    select();
+	}
+	finally {
+	    busLock.unlock();
+	}
+    }
+
+// ******* configureFpga *******************************************************
+// configures the FPGA, returns the configuration time in ms
+    public long configureFpga ( String fileName, boolean forceEP0Config ) throws Exception {
+	busLock.lock();
+	try {
+	    select();
+	    try {
+		return forceEP0Config ? ztex.configureFpgaLS( fileName, true, 2 ) : ztex.configureFpga( fileName, true, 2 );
+	    }
+	    finally {
+		board.selected = -1;	// the selection may be changed by the SDK
+	    }
+	}
+	finally {
+	    busLock.unlock();
+	}
+    }
+
+// ******* close ***************************************************************
+// removes the state of the board, called if the board is disconnected or the 
+// FPGA is disabled. Open devices of the same board keep using the old state.
+    public void close ( ) {
+	synchronized ( busLocks ) {
+	    if ( boards.get(ztex) == board ) 
+		boards.remove( ztex );
+	}
+    }
+
+// ******* sendData ************************************************************
+    public void sendData ( byte[] buf, int length ) throws UsbException {
+	busLock.lock();
+	try {
+	    select();
+	    transfers.inc();
+	    ztex.vendorCommand2( 0x80, "Send hash data", 0, 0, buf, length );
+	}
+	finally {
+	    busLock.unlock();
+	}
+    }
+
+// ******* readNonces **********************************************************
+    public void readNonces ( byte[] buf, int length ) throws UsbException {
+	busLock.lock();
+	try {
+	    select();
+	    transfers.inc();
+	    ztex.vendorRequest2( 0x81, "Read hash data", 0, 0, buf, length );
+	}
+	finally {
+	    busLock.unlock();
+	}
+    }
+
+// ******* readDescriptor ******************************************************
+    public void readDescriptor ( byte[] buf ) throws UsbException {
+	ztex.vendorRequest2( 0x82, "Read descriptor", 0, 0, buf, 64 );
+    }
+
+// ******* setFreq *************************************************************
+    public void setFreq ( int m ) throws UsbException {
+	busLock.lock();
+	try {
+	    select();
+	    transfers.inc();
+	    ztex.vendorCommand( 0x83, "Send hash data", m, 0 );
+	}
+	finally {
+	    busLock.unlock();
+	}
+    }
+
+// ******* suspend *************************************************************
+    public void suspend ( ) throws UsbException {
+	busLock.lock();
+	try {
+	    select();
+	    transfers.inc();
+	    ztex.vendorCommand( 0x84, "Suspend" );
+	}
+	finally {
+	    busLock.unlock();
+	}
+    }
+
+// ******* tempSensorRead ******************************************************
+    public double tempSensorRead ( ) throws Exception {
+	busLock.lock();
+	try {
+	    board.selected = -1;	// the selection may be changed by the SDK
+	    return ztex.tempSensorRead(fpgaNum);
+	}
+	finally {
+	    busLock.unlock();
+	}
+    }
+
+// ******* resetFpga ***********************************************************
+    public void resetFpga ( ) throws Exception {
+	busLock.lock();
+	try {
+	    select();
+	    transfers.inc();
+	    ztex.resetFpga();
+	}
+	finally {
+	    busLock.unlock();
+	}
+    }
+
+// ******* printInfo ***********************************************************
+// prints the number of USB transfers per second and the number of saved FPGA selections
+    public static synchronized void printInfo () {
+	long t = new Date().getTime();
+	double d = Math.max( t - lastInfoTime, 1 ) * 0.001;
+	long n = Metrics.sum("usb_transfers");
+	long s = Metrics.sum("usb_selections_saved");
+	long dn = n - lastTransfers;
+	long ds = s - lastSavedTransfers;
+	if ( dn + ds > 0 ) 
+	    BTCMiner.printMsg2( String.format("USB: %.1f transfers/s, %.1f FPGA selections/s saved (%.1f%%)", dn / d, ds / d, ds * 100.0 / (dn+ds) ) );
+	lastTransfers = n;
+	lastSavedTransfers = s;
+	lastInfoTime = t;
+    }
+
+// ******* snString ************************************************************
+    public String snString ( ) {
+	return ztex.dev().snString();
+    }
+
+// ******* busName *************************************************************
+    public String busName ( ) {
+	return ztex.dev().dev().getBus().getDirname();
+    }
+
+// ******* devNum **************************************************************
+    public int devNum ( ) {
+	return ztex.dev().dev().getDevnum();
+    }
+}
+
+
+// *****************************************************************************
+// ******* SimulatedMinerDevice ************************************************
+// *****************************************************************************
+// Software model of a FPGA running the BTCMiner bitstream. Nonces and hash 
+// values are computed from the midstate and data that was sent, the progress 
+// depends on the frequency. Errors occur with a frequency and temperature 
+// dependent probability, the temperature follows the frequency with a delay.
+// Golden nonces are real hashes with goldenBits leading zero bits (the firmware 
+// uses 32 bits which cannot be found in software). They are emitted at the rate 
+// a real FPGA would find difficulty 1 shares. Every transfer takes usbLatency ms 
+// and devices on the same simulated bus are serialized.
+class SimulatedMinerDevice implements MinerDevice {
+    public static long usbLatency = 1;		// in ms
+    public static int devicesPerBus = 10;
+    public static int goldenBits = 12;
+    public static double ambientTemp = 30;	// in C
+
+    private static final int numNonces = 1;	// as in all current bitstreams
+    private static final int extraSolutions = 1;
+    private static final int freqM1 = 400;	// in 10kHz
+    private static final int freqMDefault = 49;
+    private static final int freqMaxM = 63;
+    private static final double tempTau = 60000;	// in ms
+
+    private static int deviceCount = 0;
+    private static Vector<ReentrantLock> busLocks = new Vector<ReentrantLock>();
+
+    private String snString;
+    private String busName;
+    private int devNum;
+    private ReentrantLock busLock;
+    private Random random;
+
+    private NonceVerifier verifier = new NonceVerifier();
+    private byte[] dataBuf = new byte[128];
+    private byte[] midstateBuf = new byte[32];
+    private byte[] targetBuf = new byte[32];
+    private boolean running = false;
+    private long lastUpdate = 0;
+    private double[] pos = new double[numNonces];	// progress of the cores
+    private int[] goldenNonces = new int[numNonces*(1+extraSolutions)];
+    private int freqM = freqMDefault;
+    private double critFreq;				// frequency at which 50% of the results are wrong (at 50C), in MHz
+    private double temp = ambientTemp;
+    private double tempCoeff;				// in C/MHz
+
+// ******* constructor *********************************************************
+    public SimulatedMinerDevice () {
+	int n;
+	synchronized ( busLocks ) {
+	    n = deviceCount++;
+	    if ( n % devicesPerBus == 0 ) 
+		busLocks.add( new ReentrantLock() );
+	    busLock = busLocks.lastElement();
+	}
+	random = new Random( n );
+	snString = BTCMiner.checkSnString( "" + (n+1) );
+	busName = "sim" + (n / devicesPerBus);
+	devNum = n % devicesPerBus + 1;
+	critFreq = 225 + random.nextGaussian()*10;
+	tempCoeff = 0.12 + random.nextDouble()*0.06;
+	for ( int i=0; i<BTCMiner.sha256_pad1.length; i++ ) 
+	    dataBuf[80+i] = BTCMiner.sha256_pad1[i];
+    }
+
+// ******* usbTransfer *********************************************************
+    private void usbTransfer () {
+	if ( usbLatency > 0 ) {
+	    try {
+		Thread.sleep( usbLatency );
+	    }
+	    catch ( InterruptedException e) {
+	    }
+	}
+    }
+
+// ******* errorRate ***********************************************************
+    public double errorRate () {
+	double f = (freqM+1) * freqM1 * 0.01;
+	double fc = critFreq - 0.8*(temp-50);
+	return 0.001 + 1.0/(1.0+Math.exp( (fc-f)/3.0 ));
+    }
+
+// ******* update **************************************************************
+// advances the simulation to time t
+    private void update ( long t ) {
+	long dt = t - lastUpdate;
+	lastUpdate = t;
+	if ( dt <= 0 ) 
+	    return;
+
+	double f = (freqM+1) * freqM1 * 0.01;
+	double ts = running ? ambientTemp + f*tempCoeff : ambientTemp;
+	temp = ts + (temp-ts) * Math.exp(-dt/tempTau);
+	if ( ! running ) 
+	    return;
+
+	double range = 4294967296.0 / numNonces;
+	double hashes = f * 1e6 * dt * 0.001 / numNonces;	// one hash per clock
+	double l = hashes / 4294967296.0;			// expected number of golden nonces per core
+	for ( int i=0; i<numNonces; i++ ) {
+	    double p0 = pos[i];
+	    pos[i] = (pos[i] + hashes) % range;
+	    // Poisson distributed number of golden nonces
+	    double p = Math.exp(-l);
+	    double s = p;
+	    double u = random.nextDouble();
+	    for ( int k=1; u > s && k <= 1+extraSolutions; k++ ) {
+		addGolden( i, (long) ((p0 + random.nextDouble()*hashes) % range) );
+		p *= l / k;
+		s += p;
+	    }
+	}
+    }
+
+// ******* addGolden ***********************************************************
+// searches a golden nonce near position p of a core
+    private void addGolden ( int core, long p ) {
+	int n = (int) ( core * (4294967296L / numNonces) + p );
+	int mask = goldenBits >= 32 ? -1 : ~(-1 >>> goldenBits);
+	int maxTries = 16 << Math.min(goldenBits, 20);
+	for ( int i=0; i<maxTries; i++, n++ ) {
+	    if ( ( Integer.reverseBytes(verifier.hash7(n)) & mask ) == 0 ) {
+		if ( random.nextDouble() < errorRate() )
+		    n += random.nextInt();
+		int j = core*(1+extraSolutions);
+		for ( int k=extraSolutions; k>0; k-- )
+		    goldenNonces[j+k] = goldenNonces[j+k-1];
+		goldenNonces[j] = n;
+		return;
+	    }
+	}
+    }
+
+// ******* sendData ************************************************************
+    public void sendData ( byte[] buf, int length ) throws UsbException {
+	if ( length < 44 ) 
+	    throw new UsbException( "Invalid length of hash data" );
+	busLock.lock();
+	try {
+	    usbTransfer();
+	    synchronized ( this ) {
+		update( new Date().getTime() );
+		for ( int i=0; i<12; i++ ) 
+		    dataBuf[64+i] = buf[i];
+		for ( int i=0; i<32; i++ ) 
+		    midstateBuf[i] = buf[i+12];
+		verifier.setWork( midstateBuf, dataBuf, targetBuf );
+		for ( int i=0; i<numNonces; i++ ) 
+		    pos[i] = 0;
+		for ( int i=0; i<goldenNonces.length; i++ ) 
+		    goldenNonces[i] = 0;
+		running = true;
+	    }
+	}
+	finally {
+	    busLock.unlock();
+	}
+    }
+
+// ******* readNonces **********************************************************
+    public void readNonces ( byte[] buf, int length ) throws UsbException {
+	int bs = 12 + extraSolutions*4;
+	if ( length < numNonces*bs ) 
+	    throw new UsbException( "Invalid length of hash data" );
+	busLock.lock();
+	try {
+	    usbTransfer();
+	    synchronized ( this ) {
+		update( new Date().getTime() );
+		double e = errorRate();
+		for ( int i=0; i<numNonces; i++ ) {
+		    int n = (int) ( i * (4294967296L / numNonces) + (long) pos[i] );
+		    int h = verifier.hash7(n) - 0x5be0cd19;
+		    if ( random.nextDouble() < e ) 
+			h ^= 1 << random.nextInt(32);
+		    BTCMiner.intToData( goldenNonces[i*(1+extraSolutions)], buf, i*bs+0 );
+		    BTCMiner.intToData( n, buf, i*bs+4 );
+		    BTCMiner.intToData( h, buf, i*bs+8 );
+		    for ( int j=0; j<extraSolutions; j++ )
+			BTCMiner.intToData( goldenNonces[i*(1+extraSolutions)+1+j], buf, i*bs+12+j*4 );
+		}
+	    }
+	}
+	finally {
+	    busLock.unlock();
+	}
+    }
+
+// ******* readDescriptor ******************************************************
+    public void readDescriptor ( byte[] buf ) throws UsbException {
+	final String bitFileName = "sim_btcminer";
+	for ( int i=0; i<64; i++ )
+	    buf[i] = 0;
+	buf[0] = 5;
+	buf[1] = (byte) (numNonces - 1);
+	buf[2] = (byte) (10000 & 255);		// offsNonces = 0
+	buf[3] = (byte) (10000 >> 8);
+	buf[4] = (byte) (freqM1 & 255);
+	buf[5] = (byte) (freqM1 >> 8);
+	buf[6] = (byte) freqMDefault;
+	buf[7] = (byte) freqMaxM;
+	buf[8] = (byte) 127;			// one hash per clock
+	buf[9] = 0;
+	buf[10] = (byte) extraSolutions;
+	for ( int i=0; i<bitFileName.length(); i++ ) 
+	    buf[11+i] = (byte) bitFileName.charAt(i);
+	usbTransfer();
+    }
+
+// ******* setFreq *************************************************************
+    public void setFreq ( int m ) throws UsbException {
+	busLock.lock();
+	try {
+	    usbTransfer();
+	    synchronized ( this ) {
+		update( new Date().getTime() );
+		freqM = Math.max( 0, Math.min( freqMaxM, m ) );
+	    }
+	}
+	finally {
+	    busLock.unlock();
+	}
+    }
+
+// ******* suspend *************************************************************
+    public void suspend ( ) throws UsbException {
+	busLock.lock();
+	try {
+	    usbTransfer();
+	    synchronized ( this ) {
+		update( new Date().getTime() );
+		running = false;
+	    }
+	}
+	finally {
+	    busLock.unlock();
+	}
+    }
+
+// ******* tempSensorRead ******************************************************
+    public double tempSensorRead ( ) throws Exception {
+	busLock.lock();
+	try {
+	    usbTransfer();
+	    synchronized ( this ) {
+		update( new Date().getTime() );
+		return temp;
+	    }
+	}
+	finally {
+	    busLock.unlock();
+	}
+    }
+
+// ******* resetFpga ***********************************************************
+    public void resetFpga ( ) throws Exception {
+	suspend();
+    }
+
+// ******* snString ************************************************************
+    public String snString ( ) {
+	return snString;
+    }
+
+// ******* busName *************************************************************
+    public String busName ( ) {
+	return busName;
+    }
+
+// ******* devNum **************************************************************
+    public int devNum ( ) {
+	return devNum;
+    }
+}
+
+
+// *****************************************************************************
+// ******* TraceMinerDevice ****************************************************
+// *****************************************************************************
+// Writes the transfers of a device to the trace (BTCMiner.traceFile, see -tr): 
+// descriptor, work sent to the FPGA, raw poll results (golden nonces, nonce and 
+// hash value, overflows are detected from consecutive nonces), frequency 
+// changes and temperature readings. The static methods record the work units, 
+// the shares and the results of the submissions. If the trace cannot be 
+// written, tracing is disabled.
+class TraceMinerDevice implements MinerDevice {
+    private MinerDevice device;
+    private String key;
+
+// ******* constructor *********************************************************
+// pKey identifies the FPGA in the trace
+    public TraceMinerDevice ( MinerDevice pDevice, String pKey ) {
+	device = pDevice;
+	key = pKey;
+    }
+
+// ******* record **************************************************************
+    public static void record ( int type, String key, byte[] buf, int length ) {
+	DataOutputStream out = BTCMiner.traceFile;
+	if ( out == null ) 
+	    return;
+	try {
+	    WorkRecord.writeBuffer( out, type, new Date().getTime(), key, buf, length );
+	}
+	catch ( IOException e ) {
+	    failed( e );
+	}
+    }
+
+    public static void record ( int type, int rpc, String key, double value ) {
+	DataOutputStream out = BTCMiner.traceFile;
+	if ( out == null ) 
+	    return;
+	try {
+	    WorkRecord.writeValue( out, type, new Date().getTime(), rpc, key, value );
+	}
+	catch ( IOException e ) {
+	    failed( e );
+	}
+    }
+
+// ******* recordWork **********************************************************
+    public static void recordWork ( WorkUnit w ) {
+	DataOutputStream out = BTCMiner.traceFile;
+	if ( out == null ) 
+	    return;
+	try {
+	    WorkRecord.writeWork( out, w.time, w.rpcNum, w.data, w.target );
+	}
+	catch ( IOException e ) {
+	    failed( e );
+	}
+    }
+
+// ******* recordShare *********************************************************
+    public static void recordShare ( int rpc, String device, byte[] data ) {
+	DataOutputStream out = BTCMiner.traceFile;
+	if ( out == null ) 
+	    return;
+	try {
+	    WorkRecord.writeShare( out, new Date().getTime(), rpc, device, data );
+	}
+	catch ( IOException e ) {
+	    failed( e );
+	}
+    }
+
+// ******* failed **************************************************************
+    private static synchronized void failed ( IOException e ) {
+	if ( BTCMiner.traceFile == null ) 
+	    return;
+	BTCMiner.traceFile = null;
+	BTCMiner.printMsg( "Error writing trace: " + e.getLocalizedMessage() + ": Tracing disabled" );
+    }
+
+// ******* sendData ************************************************************
+    public void sendData ( byte[] buf, int length ) throws UsbException {
+	device.sendData( buf, length );
+	record( WorkRecord.SEND, key, buf, length );
+    }
+
+// ******* readNonces **********************************************************
+    public void readNonces ( byte[] buf, int length ) throws UsbException {
+	device.readNonces( buf, length );
+	record( WorkRecord.POLL, key, buf, length );
+    }
+
+// ******* readDescriptor ******************************************************
+    public void readDescriptor ( byte[] buf ) throws UsbException {
+	device.readDescriptor( buf );
+	record( WorkRecord.DEVICE, key, buf, 64 );
+    }
+
+// ******* setFreq *************************************************************
+    public void setFreq ( int m ) throws UsbException {
+	device.setFreq( m );
+	record( WorkRecord.FREQ, 0, key, m );
+    }
+
+// ******* suspend *************************************************************
+    public void suspend ( ) throws UsbException {
+	device.suspend();
+    }
+
+// ******* tempSensorRead ******************************************************
+    public double tempSensorRead ( ) throws Exception {
+	double t = device.tempSensorRead();
+	record( WorkRecord.TEMP, 0, key, t );
+	return t;
+    }
+
+// ******* resetFpga ***********************************************************
+    public void resetFpga ( ) throws Exception {
+	device.resetFpga();
+    }
+
+// ******* snString ************************************************************
+    public String snString ( ) {
+	return device.snString();
+    }
+
+// ******* busName *************************************************************
+    public String busName ( ) {
+	return device.busName();
+    }
+
+// ******* devNum **************************************************************
+    public int devNum ( ) {
+	return device.devNum();
+    }
+}
+
+
+// *****************************************************************************
+// ******* ReplayMinerDevice ***************************************************
+// *****************************************************************************
+// Plays back the recorded transfers of a FPGA (see TraceReplay). The descriptor 
+// is taken from the trace. Every poll returns the next recorded poll result of 
+// the FPGA, i.e. the replay runs in lockstep with the poll loop. At the end of 
+// the trace the poll fails and the miner is disabled. Since the miner works on 
+// other work than the recorded FPGA, the results are retargeted: a recorded 
+// hash value that is valid for the recorded work (at one of the offsets of 
+// BTCMiner.checkOffs) is replaced by the hash value of the current work, an 
+// invalid one by a wrong value. Thus the error statistics and the frequency 
+// control see the recorded error rates. Golden nonces are only passed if the 
+// recorded work equals the current work.
+class ReplayMinerDevice implements MinerDevice {
+    public static int devicesPerBus = 10;
+
+    private static int deviceCount = 0;
+
+    private String snString;
+    private String busName;
+    private int devNum;
+
+    private Vector<WorkRecord> records;
+    private int pos = 0;			// next record
+    private byte[] descriptor = null;
+    private int numNonces = 1;
+    private int extraSolutions = 0;
+    private int offsNonces = 0;
+
+    private NonceVerifier verifier = new NonceVerifier();		// current work
+    private NonceVerifier recVerifier = new NonceVerifier();		// recorded work
+    private byte[] sent = new byte[44];
+    private byte[] recSent = null;
+    private byte[] dataBuf = new byte[128];
+    private byte[] midstateBuf = new byte[32];
+    private byte[] targetBuf = new byte[32];
+    private WorkRecord poll = null;
+    private long time;				// recorded time of the last replayed record
+    private double temp = Double.NaN;
+
+    // statistics
+    public int polls = 0;
+    public int invalid = 0;			// invalid recorded hash values
+    public int freqChanges = 0;
+    public int recFreqChanges = 0;
+    public int freqM = -1;
+    public int recFreqM = -1;
+
+// ******* constructor *********************************************************
+// pKey is the name of the FPGA in the trace, pDescriptor the descriptor of the 
+// FPGA or of another FPGA of the same board
+    public ReplayMinerDevice ( String pKey, byte[] pDescriptor, Vector<WorkRecord> pRecords ) {
+	int n;
+	synchronized ( ReplayMinerDevice.class ) {
+	    n = deviceCount++;
+	}
+	snString = pKey;
+	busName = "replay" + (n / devicesPerBus);
+	devNum = n % devicesPerBus + 1;
+	records = pRecords;
+	time = records.elementAt(0).time;
+	descriptor = pDescriptor;
+	numNonces = (descriptor[1] & 255) + 1;
+	offsNonces = ((descriptor[2] & 255) | ((descriptor[3] & 255) << 8)) - 10000;
+	extraSolutions = descriptor[0] > 4 ? descriptor[10] : 0;
+	for ( int i=0; i<BTCMiner.sha256_pad1.length; i++ ) 
+	    dataBuf[80+i] = BTCMiner.sha256_pad1[i];
+    }
+
+// ******* setWork *************************************************************
+    private void setWork ( NonceVerifier v, byte[] buf ) {
+	for ( int i=0; i<12; i++ ) 
+	    dataBuf[64+i] = buf[i];
+	for ( int i=0; i<32; i++ ) 
+	    midstateBuf[i] = buf[i+12];
+	v.setWork( midstateBuf, dataBuf, targetBuf );
+    }
+
+// ******* advance *************************************************************
+// processes the records up to and including the next recorded poll, returns 
+// false if the end of the trace is reached
+    private boolean advance ( ) {
+	while ( pos < records.size() ) {
+	    WorkRecord r = records.elementAt(pos++);
+	    time = r.time;
+	    TraceReplay.advance( r.time );
+	    if ( r.type == WorkRecord.SEND && r.buf.length >= 44 ) {
+		recSent = r.buf;
+		setWork( recVerifier, recSent );
+		poll = null;		// results of the previous work
+	    }
+	    else if ( r.type == WorkRecord.POLL ) {
+		poll = r;
+		return true;
+	    }
+	    else if ( r.type == WorkRecord.FREQ ) {
+		if ( (int) r.value != recFreqM ) 
+		    recFreqChanges++;
+		recFreqM = (int) r.value;
+	    }
+	    else if ( r.type == WorkRecord.TEMP ) {
+		temp = r.value;
+	    }
+	}
+	return false;
+    }
+
+// ******* sendData ************************************************************
+    public void sendData ( byte[] buf, int length ) throws UsbException {
+	if ( length < 44 ) 
+	    throw new UsbException( "Invalid length of hash data" );
+	synchronized ( this ) {
+	    System.arraycopy( buf, 0, sent, 0, 44 );
+	    setWork( verifier, sent );
+	}
+    }
+
+// ******* readNonces **********************************************************
+    public void readNonces ( byte[] buf, int length ) throws UsbException {
+	int bs = 12 + extraSolutions*4;
+	if ( length < numNonces*bs ) 
+	    throw new UsbException( "Invalid length of hash data" );
+	synchronized ( this ) {
+	    if ( ! advance() ) 
+		throw new UsbException( "End of trace" );
+	    polls++;
+	    boolean sameWork = recSent != null && Arrays.equals( recSent, sent );
+	    for ( int i=0; i<numNonces; i++ ) {
+		int n = 0;
+		int o = 0;
+		boolean valid = true;
+		boolean recorded = poll != null && poll.buf.length >= (i+1)*bs;
+		if ( recorded ) {
+		    n = BTCMiner.dataToInt( poll.buf, i*bs+4 ) - offsNonces;
+		    if ( recSent != null ) {
+			int h = BTCMiner.dataToInt( poll.buf, i*bs+8 ) + 0x5be0cd19;
+			valid = false;
+			for ( int j=0; j<BTCMiner.checkOffs.length && !valid; j++ ) {
+			    if ( recVerifier.hash7(n + BTCMiner.checkOffs[j]) == h ) {
+				o = BTCMiner.checkOffs[j];
+				valid = true;
+			    }
+			}
+		    }
+		}
+		int h = verifier.hash7(n + o) - 0x5be0cd19;
+		if ( ! valid ) {
+		    h ^= 1;
+		    invalid++;
+		}
+		for ( int j=0; j<=extraSolutions; j++ ) {
+		    int k = i*bs + ( j==0 ? 0 : 8+j*4 );
+		    BTCMiner.intToData( recorded && sameWork ? BTCMiner.dataToInt(poll.buf, k) : 0, buf, k );
+		}
+		BTCMiner.intToData( n + offsNonces, buf, i*bs+4 );
+		BTCMiner.intToData( h, buf, i*bs+8 );
+	    }
+	}
+    }
+
+// ******* readDescriptor ******************************************************
+    public void readDescriptor ( byte[] buf ) throws UsbException {
+	System.arraycopy( descriptor, 0, buf, 0, 64 );
+    }
+
+// ******* setFreq *************************************************************
+    public synchronized void setFreq ( int m ) throws UsbException {
+	if ( m != freqM ) 
+	    freqChanges++;
+	freqM = m;
+    }
+
+// ******* suspend *************************************************************
+    public void suspend ( ) throws UsbException {
+    }
+
+// ******* tempSensorRead ******************************************************
+    public synchronized double tempSensorRead ( ) throws Exception {
+	if ( Double.isNaN(temp) ) 
+	    throw new Exception( "No temperature in trace" );
+	return temp;
+    }
+
+// ******* resetFpga ***********************************************************
+    public void resetFpga ( ) throws Exception {
+    }
+
+// ******* finished ************************************************************
+// true if all records have been replayed
+    public synchronized boolean finished ( ) {
+	return pos >= records.size();
+    }
+
+// ******* time ****************************************************************
+// recorded time of the last replayed record in ms
+    public synchronized long time ( ) {
+	return time;
+    }
+
+// ******* snString ************************************************************
+    public String snString ( ) {
+	return snString;
+    }
+
+// ******* busName *************************************************************
+    public String busName ( ) {
+	return busName;
+    }
+
+// ******* devNum **************************************************************
+    public int devNum ( ) {
+	return devNum;
+    }
+}
+
+
+// *****************************************************************************
+// ******* TraceReplay *********************************************************
+// *****************************************************************************
+// Replays a trace written with -tr (see -replay). Every FPGA of the trace is 
+// played back by a ReplayMinerDevice. A fake getwork pool on a local port 
+// serves the recorded work units in their order (starting again at the end) 
+// and answers the submitted shares with the recorded results. The replay does 
+// not depend on the real time: every poll of the miner replays the next 
+// recorded poll of the FPGA (see ReplayMinerDevice) and the replay time is a 
+// virtual clock which is set to the recorded time of the latest replayed record. 
+// The miner measures the error statistics and work updates in this time (see 
+// BTCMiner.deviceTime). Only the arrival of the work from the fake pool depends 
+// on the real time. At higher speeds the poll intervals of the miner are 
+// shortened (see PollLoop.run). The replay ends after the last record of all 
+// FPGA's.
+class TraceReplay {
+    public static String fileName = null;	// null disables the replay
+    public static double speed = 1.0;
+
+    private static Vector<WorkRecord> work = new Vector<WorkRecord>();
+    private static Vector<WorkRecord> results = new Vector<WorkRecord>();
+    private static Vector<ReplayMinerDevice> devices = new Vector<ReplayMinerDevice>();
+    private static int workPos = 0;
+    private static int resultPos = 0;
+    private static int rejected = 0;
+    private static long firstTime = 0;		// recorded time of the first record
+    private static long lastTime = 0;		// recorded time of the last record
+    private static long clock = 0;		// virtual replay time
+    private static com.sun.net.httpserver.HttpServer server = null;
+
+// ******* start ***************************************************************
+// loads the trace, creates the devices and starts the fake pool which is used 
+// as the only pool
+    public static void start ( ) throws IOException {
+	Vector<String> keys = new Vector<String>();
+	Hashtable<String,Vector<WorkRecord>> records = new Hashtable<String,Vector<WorkRecord>>();
+	Hashtable<String,byte[]> descriptors = new Hashtable<String,byte[]>();
+
+	DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream(fileName) ) );
+	try {
+	    WorkRecord r;
+	    while ( (r = WorkRecord.read(in)) != null ) {
+		if ( firstTime == 0 ) 
+		    firstTime = r.time;
+		lastTime = Math.max( lastTime, r.time );
+		if ( r.type == WorkRecord.WORK ) {
+		    work.add( r );
+		}
+		else if ( r.type == WorkRecord.RESULT ) {
+		    results.add( r );
+		}
+		else if ( r.type == WorkRecord.DEVICE ) {
+		    descriptors.put( r.device, r.buf );
+		    descriptors.put( board(r.device), r.buf );
+		}
+		else if ( r.type != WorkRecord.SHARE ) {
+		    Vector<WorkRecord> v = records.get( r.device );
+		    if ( v == null ) {
+			v = new Vector<WorkRecord>();
+			records.put( r.device, v );
+			keys.add( r.device );
+		    }
+		    v.add( r );
+		}
+	    }
+	}
+	catch ( EOFException e ) {
+	    // truncated last record, e.g. if the miner has been killed
+	}
+	finally {
+	    in.close();
+	}
+	if ( work.size() == 0 ) 
+	    throw new IOException( fileName + ": No work units in trace" );
+
+	for ( int i=0; i<keys.size(); i++ ) {
+	    String k = keys.elementAt(i);
+	    byte[] d = descriptors.get( k );
+	    if ( d == null ) 
+		d = descriptors.get( board(k) );
+	    if ( d == null || d.length < 64 ) 
+		BTCMiner.printMsg( "Warning: " + k + ": No descriptor in trace, skipping FPGA" );
+	    else 
+		devices.add( new ReplayMinerDevice( k, d, records.get(k) ) );
+	}
+	if ( devices.size() == 0 ) 
+	    throw new IOException( fileName + ": No FPGA's in trace" );
+
+	server = com.sun.net.httpserver.HttpServer.create( new InetSocketAddress("127.0.0.1", 0), 0 );
+	server.createContext( "/", new com.sun.net.httpserver.HttpHandler() {
+	    public void handle ( com.sun.net.httpserver.HttpExchange ex ) throws IOException {
+		TraceReplay.handle( ex );
+	    }
+	} );
+	server.start();
+
+	BTCMiner.rpcurl[0] = "http://127.0.0.1:" + server.getAddress().getPort();
+	if ( BTCMiner.rpcuser[0] == null ) 
+	    BTCMiner.rpcuser[0] = "replay";
+	if ( BTCMiner.rpcpassw[0] == null ) 
+	    BTCMiner.rpcpassw[0] = "replay";
+	BTCMiner.rpcCount = 1;
+
+	BTCMiner.printMsg( "Replaying " + fileName + ": " + devices.size() + " FPGA's, " + work.size() + " work units, " + results.size() + " shares, " 
+	    + String.format("%.0fs at %.1fx speed", (lastTime-firstTime)*0.001, speed ) );
+	clock = firstTime;
+    }
+
+// ******* board ***************************************************************
+// FPGA name without FPGA number
+    private static String board ( String key ) {
+	int i = key.lastIndexOf('-');
+	return i > 0 ? key.substring(0, i) : key;
+    }
+
+// ******* devices *************************************************************
+    public static Vector<ReplayMinerDevice> devices () {
+	return devices;
+    }
+
+// ******* time ****************************************************************
+// current replay time in ms, i.e. the time of the trace
+    public static synchronized long time () {
+	return clock;
+    }
+
+// ******* advance *************************************************************
+// advances the virtual clock to recorded time t, called by the devices
+    public static synchronized void advance ( long t ) {
+	if ( t > clock ) 
+	    clock = t;
+    }
+
+// ******* finished ************************************************************
+    public static boolean finished () {
+	if ( server == null ) 
+	    return false;
+	for ( int i=0; i<devices.size(); i++ ) 
+	    if ( ! devices.elementAt(i).finished() ) 
+		return false;
+	return true;
+    }
+
+// ******* handle **************************************************************
+// fake pool: answers getwork requests and batches of them
+    private static void handle ( com.sun.net.httpserver.HttpExchange ex ) throws IOException {
+	InputStream is = ex.getRequestBody();
+	ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	byte[] b = new byte[4096];
+	int i;
+	while ( (i = is.read(b)) > 0 ) 
+	    bos.write( b, 0, i );
+	is.close();
+
+	int status = 200;
+	StringBuffer sb = new StringBuffer();
+	try {
+	    Object o = Json.parse( bos.toString("UTF-8") );
+	    if ( o instanceof Vector ) {
+		Vector<Object> v = Json.array( o );
+		sb.append( "[" );
+		for ( i=0; i<v.size(); i++ ) 
+		    sb.append( ( i>0 ? "," : "" ) + response(v.elementAt(i)) );
+		sb.append( "]" );
+	    }
+	    else {
+		sb.append( response(o) );
+	    }
+	}
+	catch ( ParserException e ) {
+	    status = 500;
+	    sb.append( "{\"result\":null,\"error\":\"" + e.getLocalizedMessage() + "\",\"id\":null}" );
+	}
+
+	b = sb.toString().getBytes( "UTF-8" );
+	ex.getResponseHeaders().set( "Content-Type", "application/json" );
+	ex.sendResponseHeaders( status, b.length );
+	OutputStream os = ex.getResponseBody();
+	os.write( b );
+	os.close();
+    }
+
+// ******* response ************************************************************
+// response to a single request: the next recorded work unit or submission result
+    private static synchronized String response ( Object o ) throws ParserException {
+	if ( ! (o instanceof Hashtable) ) 
+	    throw new ParserException( "Invalid request" );
+	Hashtable<String,Object> req = Json.object( o );
+	Object id = req.get("id");
+	String ids = id instanceof Double ? "" + ((Double) id).longValue() : id instanceof String ? "\"" + id + "\"" : "null";
+	Object p = req.get("params");
+
+	if ( p instanceof Vector && Json.array(p).size() > 0 ) {
+	    boolean r = resultPos < results.size() && results.elementAt(resultPos).value != 0;
+	    resultPos++;
+	    if ( r ) 
+		rejected++;
+	    return "{\"result\":" + !r + ",\"error\":null,\"id\":" + ids + "}";
+	}
+
+	WorkRecord w = work.elementAt( workPos % work.size() );
+	workPos++;
+	return "{\"result\":{\"data\":\"" + BTCMiner.dataToHexStr(w.data) + "\",\"target\":\"" + BTCMiner.dataToHexStr(w.target) + "\"},\"error\":null,\"id\":" + ids + "}";
+    }
+
+// ******* printInfo ***********************************************************
+// compares the replay with the trace
+    public static synchronized void printInfo () {
+	if ( server == null ) 
+	    return;
+	BTCMiner.printMsg2( "Replay time: " + String.format("%.0fs of %.0fs", (time()-firstTime)*0.001, (lastTime-firstTime)*0.001) );
+	for ( int i=0; i<devices.size(); i++ ) {
+	    ReplayMinerDevice d = devices.elementAt(i);
+	    BTCMiner.printMsg2( "Replay of " + d.snString() + ": " + d.polls + " polls, " + d.invalid + " invalid results, frequency changes: " 
+		+ d.recFreqChanges + " recorded / " + d.freqChanges + " replayed, multiplier: " + d.recFreqM + " recorded / " + d.freqM + " replayed" );
+	}
+	BTCMiner.printMsg2( "Replay pool: " + workPos + " work units (" + work.size() + " recorded), " + resultPos + " shares (" + results.size() + " recorded), " + rejected + " rejected" );
+    }
+}
+
+
+// *****************************************************************************
+// ******* FreqController ******************************************************
+// *****************************************************************************
+// Selects the frequency multiplier of a miner from the error statistics which 
+// are collected by getNonces (errorCount, errorWeight, errorRate, maxErrorRate).
+// select is called by updateFreq on every poll. There is one instance per miner.
+interface FreqController {
+    // returns the frequency multiplier to be used, 0 .. m.freqMaxM
+    public int select ( BTCMiner m );
+}
+
+
+// *****************************************************************************
+// ******* LegacyFreqController ************************************************
+// *****************************************************************************
+// The original controller: maxErrorRate is made monotone and the frequency is
+// increased by one step above freqMDefault each time errorWeight of the current
+// step exceeds 150.
+class LegacyFreqController implements FreqController {
+
+// ******* select **************************************************************
+    public int select ( BTCMiner m ) {
+	for ( int i=0; i<m.freqMaxM; i++ )  {
+	    if ( m.maxErrorRate[i+1]*i < m.maxErrorRate[i]*(i+20) )
+		m.maxErrorRate[i+1] = m.maxErrorRate[i]*(1.0+20.0/i);
+	}
+
+	int maxM = 0;
+	while ( maxM<m.freqMDefault && m.maxErrorRate[maxM+1]<BTCMiner.maxMaxErrorRate )
+	    maxM++;
+	while ( maxM<m.freqMaxM && m.errorWeight[maxM]>150 && m.maxErrorRate[maxM+1]<BTCMiner.maxMaxErrorRate )
+	    maxM++;
+
+	int bestM=0;
+	double bestR=0;
+	for ( int i=0; i<=maxM; i++ )  {
+	    double r = (i + 1 + ( i == m.freqM ? m.errorHysteresis : 0))*(1-m.maxErrorRate[i]);
+	    if ( r > bestR ) {
+		bestM = i;
+		bestR = r;
+	    }
+	}
+	return bestM;
+    }
+}
+
+
+// *****************************************************************************
+// ******* ModelFreqController *************************************************
+// *****************************************************************************
+// Fits the error curve p(x) = p0 + (1-p0) / (1+exp(-(x-c)/s)) to the error 
+// statistics by maximum likelihood, where the statistics of a step are treated
+// as errorCount errors in errorWeight trials. x is the frequency step shifted 
+// by k*(T-T_now), where T is the mean temperature at which the step was used. 
+// Thus the curve is predicted for the current temperature. c, s and k are 
+// determined by a grid search. All grid points with a log-likelihood within 
+// maxLogLikelihoodDrop of the maximum form the confidence region; the upper 
+// bound of the error rate of a step is its maximum over this region.
+// The selected step maximizes (step+1)*(1-estimated error rate). Steps up to 
+// one above the highest step with exploreWeight (instead of 150 in the legacy 
+// controller) may be selected, and all further steps whose upper bound is below
+// the maximum error rate (-e). I.e. the controller jumps to the optimum as soon
+// as the data supports it and backs off as soon as errors move the fitted 
+// curve. Until enough data is available the LegacyFreqController is used.
+// The fit is repeated every fitInterval ms, or immediately if the error rate 
+// of the current step exceeds the maximum error rate. In that case the result 
+// is also limited to the step selected by the LegacyFreqController.
+class ModelFreqController implements FreqController {
+    public static long fitInterval = 5000;		// in ms
+    public static double maxLogLikelihoodDrop = 2.0;
+    public static double minWeight = 20;		// minimum sum of errorWeight for using the model
+    public static double exploreWeight = 50;
+    private static final double[] sGrid = { 0.5, 1, 2, 4, 8 };	// in steps
+    private static final double[] kGrid = { 0, 0.1, 0.2, 0.4 };	// in steps per C
+    private static final double cStep = 0.25;
+
+    private LegacyFreqController legacy = new LegacyFreqController();
+    private double[] temp = new double[256];		// mean temperature per step, NaN if unknown
+    private long lastFit = 0;
+    private int last = -1;
+
+// ******* constructor *********************************************************
+    public ModelFreqController () {
+	for ( int i=0; i<temp.length; i++ ) 
+	    temp[i] = Double.NaN;
+    }
+
+// ******* select **************************************************************
+    public int select ( BTCMiner m ) {
+	if ( m.freqM >= 0 && ! Double.isNaN(m.temperature) ) 
+	    temp[m.freqM] = Double.isNaN(temp[m.freqM]) ? m.temperature : temp[m.freqM] + 0.05*(m.temperature - temp[m.freqM]);
+
+	int l = legacy.select( m );		// also keeps maxErrorRate monotone
+	double w = 0;
+	for ( int i=0; i<=m.freqMaxM; i++ ) 
+	    w += m.errorWeight[i];
+	if ( w < minWeight ) 
+	    return l;
+
+	long t = new Date().getTime();
+	boolean high = m.freqM >= 0 && m.errorRate[m.freqM] > BTCMiner.maxMaxErrorRate;
+	if ( last < 0 || lastFit + fitInterval <= t || high ) {
+	    lastFit = t;
+	    last = fit( m );
+	}
+	return high ? Math.min( last, l ) : last;
+    }
+
+// ******* p *******************************************************************
+    private static double p ( double p0, double x, double c, double s ) {
+	return p0 + (1-p0) / ( 1 + Math.exp(-(x-c)/s) );
+    }
+
+// ******* fit *****************************************************************
+    private int fit ( BTCMiner m ) {
+	int n = m.freqMaxM + 1;
+	double tNow = m.temperature;
+
+	// observations
+	int no = 0;
+	int[] os = new int[n];
+	double p0 = 0.01;
+	for ( int i=0; i<n; i++ ) {
+	    if ( m.errorWeight[i] >= 1 ) {
+		os[no++] = i;
+		p0 = Math.min( p0, (m.errorCount[i] + 0.5) / (m.errorWeight[i] + 1) );
+	    }
+	}
+	p0 = Math.max( p0, 1e-4 );
+
+	// grid search
+	int nc = (int) Math.round( (n + 20) / cStep );
+	double[] ll = new double[nc*sGrid.length*kGrid.length];
+	double best = Double.NEGATIVE_INFINITY;
+	int bestG = 0;
+	int g = 0;
+	for ( int kc=0; kc<kGrid.length; kc++ ) {
+	    for ( int sc=0; sc<sGrid.length; sc++ ) {
+		for ( int cc=0; cc<nc; cc++, g++ ) {
+		    double c = cc*cStep - 4;
+		    double r = 0;
+		    if ( kc > 0 && Double.isNaN(tNow) ) 
+			r = Double.NEGATIVE_INFINITY;
+		    for ( int j=0; j<no && r > best - 1e3; j++ ) {
+			int i = os[j];
+			double x = i + ( kc > 0 && ! Double.isNaN(temp[i]) ? kGrid[kc]*(temp[i]-tNow) : 0 );
+			double q = Math.min( Math.max( p(p0, x, c, sGrid[sc]), 1e-9 ), 1-1e-9 );
+			r += m.errorCount[i]*Math.log(q) + (m.errorWeight[i]-m.errorCount[i])*Math.log(1-q);
+		    }
+		    ll[g] = r;
+		    if ( r > best ) {
+			best = r;
+			bestG = g;
+		    }
+		}
+	    }
+	}
+
+	// estimate and upper bound
+	double[] pm = new double[n];
+	double[] pu = new double[n];
+	g = 0;
+	for ( int kc=0; kc<kGrid.length; kc++ ) {
+	    for ( int sc=0; sc<sGrid.length; sc++ ) {
+		for ( int cc=0; cc<nc; cc++, g++ ) {
+		    if ( ll[g] < best - maxLogLikelihoodDrop ) 
+			continue;
+		    double c = cc*cStep - 4;
+		    for ( int i=0; i<n; i++ ) {
+			double q = p( p0, i, c, sGrid[sc] );
+			pu[i] = Math.max( pu[i], q );
+			if ( g == bestG ) 
+			    pm[i] = q;
+		    }
+		}
+	    }
+	}
+
+	int maxM = m.freqMDefault;
+	for ( int i=0; i<n-1; i++ ) 
+	    if ( m.errorWeight[i] >= exploreWeight ) 
+		maxM = Math.max( maxM, i+1 );
+	while ( maxM < n-1 && pu[maxM+1] < BTCMiner.maxMaxErrorRate ) 
+	    maxM++;
+
+	int bestM = 0;
+	double bestR = 0;
+	for ( int i=0; i<=maxM; i++ ) {
+	    if ( i > 0 && pm[i] > BTCMiner.maxMaxErrorRate ) 
+		continue;
+	    double r = (i + 1 + ( i == m.freqM ? m.errorHysteresis : 0))*(1-pm[i]);
+	    if ( r > bestR ) {
+		bestM = i;
+		bestR = r;
+	    }
+	}
+	return bestM;
+    }
+}
+
+
+// *****************************************************************************
+// ******* TempSampler *********************************************************
+// *****************************************************************************
+// Reads the temperature sensors of all FPGA's in one background thread, every 
+// interval ms per FPGA, and caches the last value and a moving average. Thus 
+// the poll loops do not need a USB transfer for the temperature. The reads use
+// the bus locks of the devices like all other transfers. Devices without a 
+// working sensor are retried every failInterval ms. A sampler whose values are 
+// not requested for dropTime ms (e.g. of a disconnected device) is removed 
+// from the schedule and added again on the next request.
+class TempSampler {
+    public static long interval = 2000;		// in ms
+    public static long failInterval = 60000;	// in ms
+    public static long dropTime = 60000;	// in ms
+    public static double alpha = 0.2;		// weight of a new value in the moving average
+
+    private static Vector<TempSampler> samplers = new Vector<TempSampler>();
+    private static Thread thread = null;
+
+    private MinerDevice device;
+    private Counter reads;
+    private double value = Double.NaN;
+    private double average = Double.NaN;
+    private long time = 0;			// time of the last valid reading
+    private long next = 0;			// time of the next reading, guarded by samplers
+    private boolean scheduled = false;		// guarded by samplers
+    private volatile long lastUse;
+
+// ******* constructor *********************************************************
+// the first value is read immediately
+    public TempSampler ( MinerDevice d ) {
+	device = d;
+	reads = Metrics.counter( "temp_sensor_reads", "bus", d.busName() );
+	sample();
+	use();
+    }
+
+// ******* sample **************************************************************
+    private void sample () {
+	long t = new Date().getTime();
+	long n;
+	try {
+	    double v = device.tempSensorRead();
+	    reads.inc();
+	    synchronized ( this ) {
+		value = v;
+		average = Double.isNaN(average) ? v : average + alpha*(v - average);
+		time = t;
+	    }
+	    n = t + interval;
+	}
+	catch ( Exception e ) {
+	    n = t + failInterval;
+	}
+	synchronized ( samplers ) {
+	    next = n;
+	}
+    }
+
+// ******* use *****************************************************************
+// (re)schedules the sampler
+    private void use () {
+	lastUse = new Date().getTime();
+	synchronized ( samplers ) {
+	    if ( scheduled ) 
+		return;
+	    scheduled = true;
+	    samplers.add( this );
+	    if ( thread == null ) {
+		thread = new Thread( "temperature sampler" ) {
+		    public void run () {
+			loop();
+		    }
+		};
+		thread.setDaemon( true );
+		thread.start();
+	    }
+	    samplers.notify();
+	}
+    }
+
+// ******* loop ****************************************************************
+    private static void loop () {
+	while ( true ) {
+	    TempSampler s = null;
+	    synchronized ( samplers ) {
+		long t = new Date().getTime();
+		for ( int i=samplers.size()-1; i>=0; i-- ) {
+		    TempSampler x = samplers.elementAt(i);
+		    if ( x.lastUse + dropTime < t ) {
+			x.scheduled = false;
+			samplers.removeElementAt(i);
+		    }
+		    else if ( s == null || x.next < s.next ) {
+			s = x;
+		    }
+		}
+		if ( s == null || s.next > t ) {
+		    try {
+			samplers.wait( s == null ? interval : s.next - t );
+		    }
+		    catch ( InterruptedException e ) {
+		    }
+		    continue;
+		}
+	    }
+	    s.sample();
+	}
+    }
+
+// ******* valid ***************************************************************
+// true if the last reading is not older than 5 intervals
+    private boolean valid () {
+	return time + 5*interval >= new Date().getTime();
+    }
+
+// ******* value ***************************************************************
+// last reading, NaN if not available
+    public double value () {
+	use();
+	synchronized ( this ) {
+	    return valid() ? value : Double.NaN;
+	}
+    }
+
+// ******* average *************************************************************
+// moving average, NaN if not available
+    public double average () {
+	use();
+	synchronized ( this ) {
+	    return valid() ? average : Double.NaN;
+	}
+    }
+
+// ******* time ****************************************************************
+// time of the last reading
+    public synchronized long time () {
+	return time;
+    }
+}
+
+
+// *****************************************************************************
+// ******* ThermalGovernor *****************************************************
+// *****************************************************************************
+// Limits the frequency of an FPGA before it reaches the temperature limit (-t).
+// The temperature trend is extrapolated by horizon ms. Depending on the band of
+// the predicted temperature the frequency limit is
+//   reduced by hotStep steps if it exceeds the limit,
+//   reduced by one step if it is less than margin below the limit, 
+//   kept if it is less than 2*margin below the limit and 
+//   raised by one step otherwise.
+// The limit is reduced at most every stepInterval ms and raised at most every
+// restoreInterval ms. The FPGA is only shut down if the temperature exceeds 
+// the limit by criticalMargin. Without temperature readings a limit set by 
+// throttle is raised by one step every restoreInterval ms.
+class ThermalGovernor {
+    public static final int UNLIMITED = 255;
+    public static double margin = 3;		// in C
+    public static double criticalMargin = 5;	// in C
+    public static int hotStep = 4;
+    public static long horizon = 30000;		// in ms
+    public static long stepInterval = 10000;	// in ms
+    public static long restoreInterval = 60000;	// in ms
+
+    private double temp = Double.NaN;		// smoothed temperature
+    private double slope = 0;			// in C/ms
+    private double lastTemp = Double.NaN;
+    private long lastTime = 0;
+    private long lastChange = 0;
+    private int cap = UNLIMITED;
+    private boolean changed = false;
+
+// ******* update **************************************************************
+// evaluates the temperature reading t taken at time tt (NaN if not available) 
+// and returns the highest allowed frequency multiplier 
+    public int update ( double t, long tt, int freqM, int freqMaxM ) {
+	long now = new Date().getTime();
+	changed = false;
+	if ( freqM < 0 ) 
+	    return cap;
+	if ( Double.isNaN(t) ) {
+	    if ( cap < UNLIMITED && now - lastChange >= restoreInterval ) {
+		cap = cap + 1 > freqMaxM ? UNLIMITED : cap + 1;
+		lastChange = now;
+		changed = true;
+	    }
+	    return cap;
+	}
+
+	if ( Double.isNaN(temp) ) {
+	    temp = t;
+	    lastTemp = t;
+	    lastTime = tt;
+	}
+	else if ( tt - lastTime >= 1000 ) {
+	    slope += 0.3 * ( (t - lastTemp) / (tt - lastTime) - slope );
+	    temp += 0.3 * ( t - temp );
+	    lastTemp = t;
+	    lastTime = tt;
+	}
+
+	double limit = BTCMiner.tempLimit;
+	double tp = Math.max( t, temp + slope*horizon );
+	int c = cap;
+	if ( now - lastChange >= stepInterval ) {
+	    if ( tp >= limit ) 
+		c = Math.min( cap, freqM - hotStep );
+	    else if ( tp >= limit - margin ) 
+		c = Math.min( cap, freqM - 1 );
+	}
+	if ( c == cap && cap < UNLIMITED && tp < limit - 2*margin && now - lastChange >= restoreInterval ) 
+	    c = cap + 1 > freqMaxM ? UNLIMITED : cap + 1;
+	if ( c != cap ) {
+	    cap = Math.max( c, 0 );
+	    lastChange = now;
+	    changed = true;
+	}
+	return cap;
+    }
+
+// ******* throttle ************************************************************
+// reduces the limit to m, called if a hash rate drop indicates overheating
+    public void throttle ( int m ) {
+	if ( m < cap ) {
+	    cap = Math.max( m, 0 );
+	    lastChange = new Date().getTime();
+	}
+    }
+
+// ******* changed *************************************************************
+// true if the last update changed the limit
+    public boolean changed () {
+	return changed;
+    }
+
+// ******* slope ***************************************************************
+// in C/min
+    public double slope () {
+	return slope * 60000;
+    }
+}
+
+
+// *****************************************************************************
+// ******* Sha256 **************************************************************
+// *****************************************************************************
+// SHA-256 compression function that works on 32 bit words. Words are stored in 
+// the order used by the getwork protocol, i.e. word i of a byte buffer is 
+// BTCMiner.dataToInt(buf, 4*i). The scratch buffers are allocated once, i.e. 
+// an instance must not be shared between threads.
+class Sha256 {
+    public static final int[] k = {
+	0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5,
+	0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+	0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3,
+	0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+	0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc,
+	0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+	0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+	0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+	0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13,
+	0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+	0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3,
+	0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+	0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5,
+	0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+	0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208,
+	0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    public static final int[] initState = {
+	0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private final int[] wBuf = new int[64];
+    private final int[] stateW = new int[8];
+    private final int[] dataW = new int[16];
+    private final int[] outW = new int[8];
+
+// ******* transform ***********************************************************
+// out may be the same buffer as state or data
+    public void transform(int[] state, int state_offs, int[] data, int data_offs, int[] out, int out_offs) {
+	int s0 = state[state_offs+0];
+	int s1 = state[state_offs+1];
+	int s2 = state[state_offs+2];
+	int s3 = state[state_offs+3];
+	int s4 = state[state_offs+4];
+	int s5 = state[state_offs+5];
+	int s6 = state[state_offs+6];
+	int s7 = state[state_offs+7];
+	int A = s0, B = s1, C = s2, D = s3, E = s4, F = s5, G = s6, H = s7;
+	int T, T2;
+	final int[] w = wBuf;
+
+	for (int i = 0; i < 16; i++) 
+	    w[i] = data[data_offs+i];
+
+	for (int i = 16; i < 64; i++) {
+	    T = w[i - 2];
+	    T2 = w[i - 15];
+	    w[i] = (((T >>> 17) | (T << 15)) ^ ((T >>> 19) | (T << 13)) ^ (T >>> 10)) + w[i - 7] + (((T2 >>> 7) | (T2 << 25)) ^ ((T2 >>> 18) | (T2 << 14)) ^ (T2 >>> 3)) + w[i - 16];
+	}
+
+	for (int i=0; i < 64; i++) {
+	    T = H + (((E >>> 6) | (E << 26)) ^ ((E >>> 11) | (E << 21)) ^ ((E >>> 25) | (E << 7))) + ((E & F) ^ (~E & G)) + k[i] + w[i];
+	    T2 = (((A >>> 2) | (A << 30)) ^ ((A >>> 13) | (A << 19)) ^ ((A >>> 22) | (A << 10))) + ((A & B) ^ (A & C) ^ (B & C));
+	    H = G;
+	    G = F;
+	    F = E;
+	    E = D + T;
+	    D = C;
+	    C = B;
+	    B = A;
+	    A = T + T2;
+	}
+
+	out[out_offs+0] = A + s0;
+	out[out_offs+1] = B + s1;
+	out[out_offs+2] = C + s2;
+	out[out_offs+3] = D + s3;
+	out[out_offs+4] = E + s4;
+	out[out_offs+5] = F + s5;
+	out[out_offs+6] = G + s6;
+	out[out_offs+7] = H + s7;
+    }
+
+    public void transform(byte[] state, int state_offs, byte[] data, int data_offs, byte[] out, int out_offs) throws NumberFormatException {
+	if ( state.length < state_offs+32 )
+	    throw new NumberFormatException("Invalid length of state");
+	if ( data.length < data_offs+64 )
+	    throw new NumberFormatException("Invalid length of data");
+	if ( out.length < out_offs+32 )
+	    throw new NumberFormatException("Invalid length of out");
+
+	dataToInts(state, state_offs, stateW, 0, 8);
+	dataToInts(data, data_offs, dataW, 0, 16);
+	transform(stateW, 0, dataW, 0, outW, 0);
+	intsToData(outW, 0, out, out_offs, 8);
+    }
+
+// ******* dataToInts **********************************************************
+    public static void dataToInts (byte[] buf, int offs, int[] out, int out_offs, int n) {
+	if ( offs + 4*n > buf.length )
+	    throw new NumberFormatException("Invalid length of data");
+	for ( int i=0; i<n; i++ ) {
+	    int j = offs + 4*i;
+	    out[out_offs+i] = (buf[j+0] & 255) | ((buf[j+1] & 255)<<8) | ((buf[j+2] & 255)<<16) | ((buf[j+3] & 255)<<24);
+	}
+    }
+
+// ******* intsToData **********************************************************
+    public static void intsToData (int[] in, int in_offs, byte[] buf, int offs, int n) {
+	for ( int i=0; i<n; i++ ) 
+	    BTCMiner.intToData(in[in_offs+i], buf, offs+4*i);
+    }
+}
+
+
+// *****************************************************************************
+// ******* NonceVerifier *******************************************************
+// *****************************************************************************
+// Double SHA-256 of a block header with varying nonce. Everything that does not
+// depend on the nonce is computed once per work unit in setWork: the first three
+// rounds of the second block, the message schedule words 16 and 17 and the 
+// constant parts of words 18 and 19. The final hash stops after round 60 if only 
+// hash word 7 is required (H7 after round 63 is E after round 60).
+// Like Sha256 an instance must not be shared between threads.
+class NonceVerifier {
+    protected int[] midstate = new int[8];
+    protected int[] target = new int[8];
+
+    protected int[] w1 = new int[64];	// message schedule of the second block, word 3 is the nonce
+    private int[] w2 = new int[64];	// message schedule of the final hash
+    private int[] hash = new int[8];
+
+    protected int pA, pB, pC, pD, pE, pF, pG, pH;	// state after round 2
+    protected int pA3, pE3;			// round 3 without the nonce
+    protected int w18p, w19p;			// nonce independent parts of schedule words 18 and 19
+
+    private static final int h7init = Sha256.initState[7];
+
+// ******* setWork *************************************************************
+// midstate: 32 bytes, data: 128 bytes (second block starts at offset 64), target: 32 bytes
+    public void setWork (byte[] midstateBuf, byte[] dataBuf, byte[] targetBuf) throws NumberFormatException {
+	Sha256.dataToInts(midstateBuf,0, midstate,0, 8);
+	Sha256.dataToInts(dataBuf,64, w1,0, 16);
+	Sha256.dataToInts(targetBuf,0, target,0, 8);
+
+	int A = midstate[0], B = midstate[1], C = midstate[2], D = midstate[3];
+	int E = midstate[4], F = midstate[5], G = midstate[6], H = midstate[7];
+	int T, T2;
+	for (int i=0; i<3; i++) {
+	    T = H + (((E >>> 6) | (E << 26)) ^ ((E >>> 11) | (E << 21)) ^ ((E >>> 25) | (E << 7))) + ((E & F) ^ (~E & G)) + Sha256.k[i] + w1[i];
+	    T2 = (((A >>> 2) | (A << 30)) ^ ((A >>> 13) | (A << 19)) ^ ((A >>> 22) | (A << 10))) + ((A & B) ^ (A & C) ^ (B & C));
+	    H = G; G = F; F = E; E = D + T;
+	    D = C; C = B; B = A; A = T + T2;
+	}
+	pA = A; pB = B; pC = C; pD = D; pE = E; pF = F; pG = G; pH = H;
+
+	T = H + (((E >>> 6) | (E << 26)) ^ ((E >>> 11) | (E << 21)) ^ ((E >>> 25) | (E << 7))) + ((E & F) ^ (~E & G)) + Sha256.k[3];
+	T2 = (((A >>> 2) | (A << 30)) ^ ((A >>> 13) | (A << 19)) ^ ((A >>> 22) | (A << 10))) + ((A & B) ^ (A & C) ^ (B & C));
+	pE3 = D + T;
+	pA3 = T + T2;
+
+	for (int i = 16; i < 18; i++) 
+	    w1[i] = sigma1(w1[i-2]) + w1[i-7] + sigma0(w1[i-15]) + w1[i-16];
+	w18p = sigma1(w1[16]) + w1[11] + w1[2];
+	w19p = sigma1(w1[17]) + w1[12] + sigma0(w1[4]);
+
+	w2[8] = 0x80000000;
+	for (int i = 9; i < 15; i++) 
+	    w2[i] = 0;
+	w2[15] = 0x100;
+    }
+
+// ******* sigma0 / sigma1 *****************************************************
+    private static int sigma0 ( int x ) {
+	return ((x >>> 7) | (x << 25)) ^ ((x >>> 18) | (x << 14)) ^ (x >>> 3);
+    }
+
+    private static int sigma1 ( int x ) {
+	return ((x >>> 17) | (x << 15)) ^ ((x >>> 19) | (x << 13)) ^ (x >>> 10);
+    }
+
+// ******* firstHash ***********************************************************
+// hashes the second block with the given nonce, result is written to w2[0..7]
+    private void firstHash ( int n ) {
+	final int[] w = w1;
+	w[3] = n;
+	w[18] = w18p + sigma0(n);
+	w[19] = w19p + n;
+	for (int i = 20; i < 64; i++) 
+	    w[i] = sigma1(w[i-2]) + w[i-7] + sigma0(w[i-15]) + w[i-16];
+
+	int A = pA3 + n, B = pA, C = pB, D = pC;
+	int E = pE3 + n, F = pE, G = pF, H = pG;
+	int T, T2;
+	for (int i=4; i < 64; i++) {
+	    T = H + (((E >>> 6) | (E << 26)) ^ ((E >>> 11) | (E << 21)) ^ ((E >>> 25) | (E << 7))) + ((E & F) ^ (~E & G)) + Sha256.k[i] + w[i];
+	    T2 = (((A >>> 2) | (A << 30)) ^ ((A >>> 13) | (A << 19)) ^ ((A >>> 22) | (A << 10))) + ((A & B) ^ (A & C) ^ (B & C));
+	    H = G; G = F; F = E; E = D + T;
+	    D = C; C = B; B = A; A = T + T2;
+	}
+
+	w2[0] = A + midstate[0];
+	w2[1] = B + midstate[1];
+	w2[2] = C + midstate[2];
+	w2[3] = D + midstate[3];
+	w2[4] = E + midstate[4];
+	w2[5] = F + midstate[5];
+	w2[6] = G + midstate[6];
+	w2[7] = H + midstate[7];
+    }
+
+// ******* finalHash ***********************************************************
+// hashes w2 using the given number of rounds (61 or 64), returns word 7 of the hash
+    private int finalHash ( int rounds ) {
+	final int[] w = w2;
+	for (int i = 16; i < rounds; i++) 
+	    w[i] = sigma1(w[i-2]) + w[i-7] + sigma0(w[i-15]) + w[i-16];
+
+	final int[] s = Sha256.initState;
+	int A = s[0], B = s[1], C = s[2], D = s[3], E = s[4], F = s[5], G = s[6], H = s[7];
+	int T, T2;
+	for (int i=0; i < rounds; i++) {
+	    T = H + (((E >>> 6) | (E << 26)) ^ ((E >>> 11) | (E << 21)) ^ ((E >>> 25) | (E << 7))) + ((E & F) ^ (~E & G)) + Sha256.k[i] + w[i];
+	    T2 = (((A >>> 2) | (A << 30)) ^ ((A >>> 13) | (A << 19)) ^ ((A >>> 22) | (A << 10))) + ((A & B) ^ (A & C) ^ (B & C));
+	    H = G; G = F; F = E; E = D + T;
+	    D = C; C = B; B = A; A = T + T2;
+	}
+
+	if ( rounds < 64 ) 
+	    return E + h7init;
+
+	hash[0] = A + s[0];
+	hash[1] = B + s[1];
+	hash[2] = C + s[2];
+	hash[3] = D + s[3];
+	hash[4] = E + s[4];
+	hash[5] = F + s[5];
+	hash[6] = G + s[6];
+	hash[7] = H + s[7];
+	return hash[7];
+    }
+
+// ******* hash7 ***************************************************************
+// returns word 7 of the double hash
+    public int hash7 ( int n ) {
+	firstHash(n);
+	return finalHash(61);
+    }
+
+// ******* hash ****************************************************************
+// computes the full double hash, returns a reference to the internal buffer
+    public int[] hash ( int n ) {
+	firstHash(n);
+	finalHash(64);
+	return hash;
+    }
+
+// ******* compareWithTarget ***************************************************
+// returns true if smaller than or equal to target
+    public boolean compareWithTarget ( int n ) {
+	// the hash words are big endian, the target words little endian; compare unsigned from the most significant word
+	int h = Integer.reverseBytes(hash7(n)) ^ 0x80000000;
+	int t = target[7] ^ 0x80000000;
+	if ( h != t )
+	    return h < t;
+
+	hash(n);
+	for ( int i=6; i>=0; i-- ) {
+	    h = Integer.reverseBytes(hash[i]) ^ 0x80000000;
+	    t = target[i] ^ 0x80000000;
+	    if ( h != t )
+		return h < t;
+	}
+	return true;
+    }
+}
+
+
+// *****************************************************************************
+// ******* BatchNonceVerifier **************************************************
+// *****************************************************************************
+// NonceVerifier that hashes up to 64 nonces of the same work unit in one pass.
+// The working variables and message schedule are stored lane by lane, i.e. all 
+// inner loops run over independent lanes with identical operations, which allows 
+// the JIT to vectorize them. Instead of moving the working variables between 
+// rounds the array references are rotated.
+class BatchNonceVerifier extends NonceVerifier {
+    public static final int maxLanes = 64;
+
+    private int[][] bw1 = new int[64][maxLanes];	// message schedule of the second block
+    private int[][] bw2 = new int[64][maxLanes];	// message schedule of the final hash
+    private int[][] regs = new int[8][maxLanes];	// working variables
+    private int[] result = new int[maxLanes];		// hash word 7
+
+// ******* constructor *********************************************************
+    public BatchNonceVerifier () {
+	for ( int l=0; l<maxLanes; l++ ) {
+	    bw2[8][l] = 0x80000000;
+	    bw2[15][l] = 0x100;
+	}
+    }
+
+// ******* setWork *************************************************************
+    public void setWork (byte[] midstateBuf, byte[] dataBuf, byte[] targetBuf) throws NumberFormatException {
+	super.setWork( midstateBuf, dataBuf, targetBuf );
+	for ( int i=0; i<18; i++ ) {
+	    if ( i != 3 ) 
+		Arrays.fill( bw1[i], w1[i] );
+	}
+    }
+
+// ******* hash7 ***************************************************************
+// computes hash word 7 of nonces[offs] ... nonces[offs+count-1] into result[0..count-1]
+    private void hash7 ( int[] nonces, int offs, int count ) {
+	if ( count > maxLanes )
+	    throw new IndexOutOfBoundsException( "BatchNonceVerifier: Too many nonces" );
+
+	// second block
+	final int[][] w = bw1;
+	int[] w3 = w[3], w18 = w[18], w19 = w[19];
+	for ( int l=0; l<count; l++ ) {
+	    int n = nonces[offs+l];
+	    w3[l] = n;
+	    w18[l] = w18p + (((n >>> 7) | (n << 25)) ^ ((n >>> 18) | (n << 14)) ^ (n >>> 3));
+	    w19[l] = w19p + n;
+	}
+	schedule( w, 20, 64, count );
+
+	int[] a = regs[0], b = regs[1], c = regs[2], d = regs[3], e = regs[4], f = regs[5], g = regs[6], h = regs[7];
+	for ( int l=0; l<count; l++ ) {
+	    int n = w3[l];
+	    a[l] = pA3 + n;
+	    b[l] = pA;
+	    c[l] = pB;
+	    d[l] = pC;
+	    e[l] = pE3 + n;
+	    f[l] = pE;
+	    g[l] = pF;
+	    h[l] = pG;
+	}
+	rounds( w, 4, 64, count );
+	for ( int j=0; j<8; j++ ) {
+	    int[] r = regs[j], o = bw2[j];
+	    int m = midstate[j];
+	    for ( int l=0; l<count; l++ )
+		o[l] = r[l] + m;
+	}
+
+	// final hash, stops after round 60
+	schedule( bw2, 16, 61, count );
+	for ( int j=0; j<8; j++ ) 
+	    Arrays.fill( regs[j], 0, count, Sha256.initState[j] );
+	rounds( bw2, 0, 61, count );
+	int[] e60 = regs[4];
+	for ( int l=0; l<count; l++ )
+	    result[l] = e60[l] + Sha256.initState[7];
+    }
+
+// ******* schedule ************************************************************
+    private static void schedule ( int[][] w, int from, int to, int count ) {
+	for ( int i=from; i<to; i++ ) {
+	    int[] wi = w[i], w2 = w[i-2], w7 = w[i-7], w15 = w[i-15], w16 = w[i-16];
+	    for ( int l=0; l<count; l++ ) {
+		int T = w2[l];
+		int T2 = w15[l];
+		wi[l] = (((T >>> 17) | (T << 15)) ^ ((T >>> 19) | (T << 13)) ^ (T >>> 10)) + w7[l] + (((T2 >>> 7) | (T2 << 25)) ^ ((T2 >>> 18) | (T2 << 14)) ^ (T2 >>> 3)) + w16[l];
+	    }
+	}
+    }
+
+// ******* rounds **************************************************************
+// D is replaced by the new E and H by the new A, then the references are rotated 
+    private void rounds ( int[][] w, int from, int to, int count ) {
+	int[] a = regs[0], b = regs[1], c = regs[2], d = regs[3], e = regs[4], f = regs[5], g = regs[6], h = regs[7];
+	for ( int i=from; i<to; i++ ) {
+	    int[] wi = w[i];
+	    int ki = Sha256.k[i];
+	    for ( int l=0; l<count; l++ ) {
+		int A = a[l], E = e[l];
+		int T = h[l] + (((E >>> 6) | (E << 26)) ^ ((E >>> 11) | (E << 21)) ^ ((E >>> 25) | (E << 7))) + ((E & f[l]) ^ (~E & g[l])) + ki + wi[l];
+		int T2 = (((A >>> 2) | (A << 30)) ^ ((A >>> 13) | (A << 19)) ^ ((A >>> 22) | (A << 10))) + ((A & b[l]) ^ (A & c[l]) ^ (b[l] & c[l]));
+		d[l] += T;
+		h[l] = T + T2;
+	    }
+	    int[] t = h;
+	    h = g; g = f; f = e; e = d;
+	    d = c; c = b; b = a; a = t;
+	}
+	regs[0] = a; regs[1] = b; regs[2] = c; regs[3] = d; regs[4] = e; regs[5] = f; regs[6] = g; regs[7] = h;
+    }
+
+// ******* checkHash7 **********************************************************
+// returns a bit mask of the nonces whose hash word 7 equals the expected value, count <= 64
+    public long checkHash7 ( int[] nonces, int[] expected, int offs, int count ) {
+	hash7( nonces, offs, count );
+	long mask = 0;
+	for ( int l=0; l<count; l++ )
+	    if ( result[l] == expected[offs+l] ) 
+		mask |= 1L << l;
+	return mask;
+    }
+
+// ******* checkTarget *********************************************************
+// returns a bit mask of the nonces whose hash is smaller than or equal to target, count <= 64
+    public long checkTarget ( int[] nonces, int offs, int count ) {
+	hash7( nonces, offs, count );
+	long mask = 0;
+	int t = target[7] ^ 0x80000000;
+	for ( int l=0; l<count; l++ ) {
+	    int h = Integer.reverseBytes(result[l]) ^ 0x80000000;
+	    if ( h < t || ( h == t && compareWithTarget(nonces[offs+l]) ) )
+		mask |= 1L << l;
+	}
+	return mask;
+    }
+}
+
+
+// *****************************************************************************
+// ******* BTCMinerBenchmark ***************************************************
 // *****************************************************************************
-class LogString {
-    public Date time;
-    public String msg;
-    
-    public LogString(String s) {
-	time = new Date();
-	msg = s;
+// Micro benchmarks of the host side hot paths (benchmark mode, -m b). Every case 
+// is warmed up and then measured in several fixed time iterations. Throughput 
+// and the number of allocated bytes per operation (if supported by the JVM) are 
+// reported.
+class BTCMinerBenchmark {
+    public static int warmupIterations = 3;
+    public static int iterations = 5;
+    public static long iterationTime = 1000;	// in ms
+
+    private static final String testData = "0000000122f3e795bb7a55b2b4a580e0dbba9f2a5aedbfc566632984000008de00000000e951667fbba0cfae7719ab2fb4ab8d291a20d387782f4610297f5899cc58b7d64e4056801a08e1e500000000000000800000000000000000000000000000000000000000000000000000000000000000000000000000000080020000";
+    private static final String testTarget = "ffffffffffffffffffffffffffffffffffffffffffffffffffffffff00000000";
+    private static final String testResponse = "{\"result\":{\"midstate\":\"28b81bd40a0e1b75d18362cb9a2faa61669d42913f26194f776c349e97559190\",\"data\":\"" + testData + "\",\"hash1\":\"00000000000000000000000000000000000000000000000000000000000000000000008000000000000000000000000000000000000000000000000000010000\",\"target\":\"" + testTarget + "\"},\"error\":null,\"id\":1}";
+
+    private abstract static class Case {
+	public String name;
+
+	public Case ( String n ) {
+	    name = n;
+	}
+
+	// performs ops operations, the result is used to prevent dead code elimination
+	public abstract int run ( int ops ) throws Exception;
     }
-}
 
+    private java.lang.management.ThreadMXBean threadBean = java.lang.management.ManagementFactory.getThreadMXBean();
+    private int sink = 0;
 
-// *****************************************************************************
-// ******* PollLoop ************************************************************
-// *****************************************************************************
-class PollLoop {
-    public static boolean scanMode = false;
-    
-    private double usbTime = 0.0;
-    private double networkTime = 0.0;
-    private double timeW = 1e-6;
-    private Vector<BTCMiner> v;
-    public static final long minQueryInterval = 250;
+    private byte[] dataBuf = BTCMiner.hexStrToData(testData);
+    private byte[] testResponseBytes = testResponse.getBytes();
+    private byte[] targetBuf = BTCMiner.hexStrToData(testTarget);
+    private byte[] midstateBuf = new byte[32];
+    private byte[] outBuf = new byte[32];
+    private Sha256 sha256 = new Sha256();
+    private NonceVerifier verifier = new NonceVerifier();
+    private BatchNonceVerifier batchVerifier = new BatchNonceVerifier();
+    private int[] nonces = new int[BatchNonceVerifier.maxLanes];
+    private int[] expected = new int[BatchNonceVerifier.maxLanes];
+    private double checkNonceTime = 0;		// in ns
 
 // ******* constructor *********************************************************
-    public PollLoop ( Vector<BTCMiner> pv ) {
-	v = pv;
+    public BTCMinerBenchmark () {
+	sha256.transform( BTCMiner.sha256_init_state,0, dataBuf,0, midstateBuf,0 );
+	verifier.setWork( midstateBuf, dataBuf, targetBuf );
+	batchVerifier.setWork( midstateBuf, dataBuf, targetBuf );
     }
-	
-// ******* run *****************************************************************
-    public void run ( ) {
-	int maxIoErrorCount = (int) Math.round( (BTCMiner.rpcCount > 1 ? 2 : 4)*BTCMiner.connectionEffort );
-	int ioDisableTime = BTCMiner.rpcCount > 1 ? 60 : 30;
-	
-	while ( v.size()>0 ) {
-	    long t0 = new Date().getTime();
-	    long tu = 0;
 
-	    if ( ! scanMode ) {
-		synchronized ( v ) {
-		    for ( int i=v.size()-1; i>=0; i-- ) {
-			BTCMiner m = v.elementAt(i);
-			
-			m.usbTime = 0;
-			
-			try { 
-			    if ( ! m.suspended ) {
-				if ( m.checkUpdate() && m.getWork() ) { // getwork calls getNonces
-			    	    m.dmsg("Got new work");
-			    	    m.sendData();
-				}
-				else {
-			    	    m.getNonces();
-				}
-				m.updateFreq();
-				m.printInfo(false);
-			    }
-			}
-			catch ( IOException e ) {
-			    m.ioErrorCount[m.rpcNum]++;
-			    if ( m.ioErrorCount[m.rpcNum] >= maxIoErrorCount ) {
-    			        m.msg("Error: "+e.getLocalizedMessage() +": Disabling URL " + m.rpcurl[m.rpcNum] + " for " + ioDisableTime + "s");
-    			        m.disableTime[m.rpcNum] = new Date().getTime() + ioDisableTime*1000;
-    			        m.ioErrorCount[m.rpcNum] = 0;
-			    }
-    			}
-			catch ( ParserException e ) {
-    			    m.msg("Error: "+e.getLocalizedMessage() +": Disabling URL " + m.rpcurl[m.rpcNum] + " for 60s");
-    			    m.disableTime[m.rpcNum] = new Date().getTime() + 60000;
-    			}
-			catch ( NumberFormatException e ) {
-    			    m.msg("Error: "+e.getLocalizedMessage() +": Disabling URL " + m.rpcurl[m.rpcNum] + " for 60s");
-    			    m.disableTime[m.rpcNum] = new Date().getTime() + 60000;
-    			}
-			catch ( IndexOutOfBoundsException e ) {
-    			    m.msg("Error: "+e.getLocalizedMessage() +": Disabling URL " + m.rpcurl[m.rpcNum] + " for 60s");
-    			    m.disableTime[m.rpcNum] = new Date().getTime() + 60000;
-    			}
-			catch ( Exception e ) {
-    			    m.msg("Error: "+e.getLocalizedMessage()+": Disabling device");
-    			    m.fatalError = "Error: "+e.getLocalizedMessage()+": Device disabled since " + BTCMiner.dateFormat.format( new Date() );
-    			    v.removeElementAt(i);
-			}
+// ******* allocatedBytes ******************************************************
+// returns -1 if not supported
+    private long allocatedBytes () {
+	try {
+	    return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes( Thread.currentThread().getId() );
+	}
+	catch ( Throwable e ) {
+	    return -1;
+	}
+    }
 
-    			tu += m.usbTime;
-    			
-    			if ( ! m.clusterMode ) {
-    			    BTCMiner.newBlockMonitor.print();
-    			}
-    		    }
-		}
+// ******* measure *************************************************************
+// returns the time per operation in ns
+    private double measure ( Case c ) throws Exception {
+	int ops = 1;
+	long t0 = System.nanoTime();
+	while ( System.nanoTime()-t0 < 10000000 ) {	// calibrate to about 10ms per call
+	    sink += c.run(ops);
+	    ops *= 2;
+	}
+
+	for ( int i=0; i<warmupIterations; i++ ) 
+	    runIteration( c, ops );
+
+	double sum = 0, sum2 = 0;
+	long allocated = 0, total = 0;
+	for ( int i=0; i<iterations; i++ ) {
+	    long a = allocatedBytes();
+	    long n = runIteration( c, ops );
+	    a = a < 0 ? -1 : allocatedBytes() - a;
+	    sum += n;
+	    sum2 += 1.0*n*n;
+	    total += n;
+	    allocated = ( a < 0 || allocated < 0 ) ? -1 : allocated + a;
+	}
+	double mean = sum / iterations * 1000.0 / iterationTime;
+	double dev = Math.sqrt( Math.max(0, sum2/iterations - sum*sum/iterations/iterations) ) * 1000.0 / iterationTime;
+
+	BTCMiner.printMsg2( String.format("%-28s %14.0f ops/s  +- %5.1f%%", c.name, mean, dev/mean*100) 
+		+ ( allocated < 0 ? "" : String.format("  %8.1f B/op", 1.0*allocated/total) ) );
+	return 1e9/mean;
+    }
+
+// ******* runIteration ********************************************************
+// returns the number of operations performed in iterationTime
+    private long runIteration ( Case c, int ops ) throws Exception {
+	long n = 0;
+	long t0 = System.nanoTime();
+	long t1 = t0 + iterationTime*1000000;
+	while ( System.nanoTime() < t1 ) {
+	    sink += c.run(ops);
+	    n += ops;
+	}
+	return n;
+    }
+
+// ******* run *****************************************************************
+    public void run () throws Exception {
+	BTCMiner.printMsg2( "Benchmark: " + warmupIterations + " warmup iterations, " + iterations + " iterations of " + iterationTime + "ms per case" );
+	if ( allocatedBytes() < 0 ) 
+	    BTCMiner.printMsg2( "Warning: allocation measurement is not supported by this JVM" );
+
+	measure( new Case("sha256_transform (static)") {
+	    public int run ( int ops ) {
+		for ( int i=0; i<ops; i++ ) 
+		    BTCMiner.sha256_transform( BTCMiner.sha256_init_state,0, dataBuf,0, outBuf,0 );
+		return outBuf[0];
+	    }
+	} );
 
-		t0 = new Date().getTime() - t0;
-		usbTime = usbTime * 0.9998 + tu;
-		networkTime = networkTime * 0.9998 + t0 - tu;
-		timeW = timeW * 0.9998 + 1;
+	measure( new Case("Sha256.transform") {
+	    public int run ( int ops ) {
+		for ( int i=0; i<ops; i++ ) 
+		    sha256.transform( BTCMiner.sha256_init_state,0, dataBuf,0, outBuf,0 );
+		return outBuf[0];
 	    }
-	    else {
-		t0 = 0;
+	} );
+
+	measure( new Case("getHash") {
+	    public int run ( int ops ) {
+		int r = 0;
+		for ( int i=0; i<ops; i++ ) 
+		    r += verifier.hash7(i);
+		return r;
 	    }
-	    
-	    t0 = minQueryInterval - t0;
-	    if ( t0 > 5 ) {
-		try {
-		    Thread.sleep( t0 );
+	} );
+
+	measure( new Case("compareWithTarget") {
+	    public int run ( int ops ) {
+		int r = 0;
+		for ( int i=0; i<ops; i++ ) 
+		    if ( verifier.compareWithTarget(i) ) r++;
+		return r;
+	    }
+	} );
+
+	checkNonceTime = measure( new Case("checkNonce (invalid nonce)") {
+	    final int[] offs = { 0, 1, -1, 2, -2 };
+	    public int run ( int ops ) {
+		int r = 0;
+		for ( int i=0; i<ops; i++ ) 
+		    for ( int j=0; j<offs.length; j++ )
+			if ( verifier.hash7(i+offs[j]) == 0 ) r++;
+		return r;
+	    }
+	} );
+
+	double batchTime = measure( new Case("checkHash7 (batch of " + nonces.length + ")") {
+	    public int run ( int ops ) {
+		long r = 0;
+		for ( int i=0; i<ops; i++ ) {
+		    for ( int j=0; j<nonces.length; j++ )
+			nonces[j] = i + j;
+		    r += batchVerifier.checkHash7( nonces, expected, 0, nonces.length );
 		}
-		catch ( InterruptedException e) {
-		}	 
+		return (int) r;
 	    }
-	}
-    }
+	} );
 
-// ******* printInfo ***********************************************************
-    public void printInfo( String name ) {
-	int oc = 0;
-	double gt=0.0, gtw=0.0, st=0.0, stw=0.0;
-	for ( int i=v.size()-1; i>=0; i-- ) {
-	    BTCMiner m = v.elementAt(i);
-	    oc += m.overflowCount;
-	    m.overflowCount = 0;
-	    
-	    st += m.submitTime;
-	    stw += m.submitTimeW;
-	    
-	    gt += m.getTime;
-	    gtw += m.getTimeW;
-	}
-	    
-	BTCMiner.printMsg2(name + ": poll loop time: " + Math.round((usbTime+networkTime)/timeW) + "ms (USB: " + Math.round(usbTime/timeW) + "ms network: " + Math.round(networkTime/timeW) + "ms)   getwork time: " 
-		+  Math.round(gt/gtw) + "ms  submit time: " +  Math.round(st/stw) + "ms" );
-	if ( oc > 0 )
-	    BTCMiner.printMsg( name + ": Warning: " + oc + " overflows occured. This is usually caused by a slow network connection." );
+	measure( new Case("hexStrToData") {
+	    public int run ( int ops ) {
+		for ( int i=0; i<ops; i++ ) 
+		    BTCMiner.hexStrToData( testData, dataBuf );
+		return dataBuf[0];
+	    }
+	} );
+
+	measure( new Case("dataToHexStr") {
+	    public int run ( int ops ) {
+		int r = 0;
+		for ( int i=0; i<ops; i++ ) 
+		    r += BTCMiner.dataToHexStr( dataBuf ).length();
+		return r;
+	    }
+	} );
+
+	measure( new Case("jsonParse") {
+	    public int run ( int ops ) throws Exception {
+		int r = 0;
+		for ( int i=0; i<ops; i++ ) 
+		    r += BTCMiner.jsonParse( testResponse, "target" ).length();
+		return r;
+	    }
+	} );
+
+	measure( new Case("JsonRpcReader") {
+	    public int run ( int ops ) throws Exception {
+		JsonRpcResponse j = new JsonRpcResponse( dataBuf, targetBuf );
+		int r = 0;
+		for ( int i=0; i<ops; i++ ) 
+		    if ( new JsonRpcReader( testResponseBytes, 0, testResponseBytes.length ).read(j).hasTarget ) 
+			r++;
+		return r;
+	    }
+	} );
+
+	measure( new Case("encodeBase64") {
+	    public int run ( int ops ) {
+		int r = 0;
+		for ( int i=0; i<ops; i++ ) 
+		    r += BTCMiner.encodeBase64( "user:password" ).length();
+		return r;
+	    }
+	} );
+
+	measure( new Case("getwork response decode") {
+	    public int run ( int ops ) throws Exception {
+		for ( int i=0; i<ops; i++ ) {
+		    new JsonRpcReader( testResponseBytes, 0, testResponseBytes.length ).read( new JsonRpcResponse(dataBuf, targetBuf) );
+		    sha256.transform( BTCMiner.sha256_init_state,0, dataBuf,0, midstateBuf,0 );
+		    batchVerifier.setWork( midstateBuf, dataBuf, targetBuf );
+		}
+		return midstateBuf[0];
+	    }
+	} );
+
+	// a poll of a FPGA with two nonces requires about two hash checks (one per nonce)
+	double pollTime = Math.min( checkNonceTime/5, batchTime/nonces.length ) * 2;
+	BTCMiner.printMsg2( String.format("Estimated verification capacity: %.0f FPGAs per CPU core (2 nonces per poll, %d polls per second)", 
+		1e9 / (pollTime * 1000.0 / PollLoop.minQueryInterval ), 1000 / PollLoop.minQueryInterval ) );
+	if ( sink == 42 ) 
+	    BTCMiner.printMsg2( "" );
     }
 }
 
@@ -789,6 +6128,9 @@ class BTCMiner implements MsgObj  {
     static PrintStream logFile = null;
     static PrintStream logFile2 = null;
     static PrintStream blkLogFile = null;
+    static DataOutputStream blkRecordFile = null;	// binary log of submitted blocks, see WorkRecord
+    static DataOutputStream traceFile = null;		// trace for replays, see TraceMinerDevice
+    static FreqProfileStore profileStore = null;
 
     static InputStream in2 = null;
     static String in2FileName = null;
@@ -802,10 +6144,13 @@ class BTCMiner implements MsgObj  {
     static double overheatThreshold = 0.04;
 
     static double maxMaxErrorRate = 0.05;
+    static boolean modelFreqControl = true;	// see -fc
     
     static double tempLimit = 65;  // in C
     
     static boolean targetCheck = false;
+    static int maxRollNTime = 60;	// maximum ntime increment if the pool allows ntime rolling, 0 disables ntime rolling
+    static int rollExpire = 120;	// maximum time in s in which work can be rolled
     
     static String filterSN = null;
 
@@ -827,6 +6172,16 @@ class BTCMiner implements MsgObj  {
 	"ztex_ufm1_15y1.ihx" 
     };
     
+    private static final char[] hexChars = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+    private static final byte[] hexValues = new byte[128];	// value of the ASCII characters, -1 if not a hex digit
+    static {
+	Arrays.fill( hexValues, (byte) -1 );
+	for ( int i=0; i<16; i++ ) {
+	    hexValues[ hexChars[i] ] = (byte) i;
+	    hexValues[ Character.toUpperCase(hexChars[i]) ] = (byte) i;
+	}
+    }
+
     public static final byte[] sha256_init_state = hexStrToData("67e6096a85ae67bb72f36e3c3af54fa57f520e518c68059babd9831f19cde05b");
     public static final byte[] sha256_pad1 = hexStrToData("000000800000000000000000000000000000000000000000000000000000000000000000000000000000000080020000");
     
@@ -907,23 +6262,35 @@ class BTCMiner implements MsgObj  {
 	return new String(dst);
     }
 
+// ******* hexValue ************************************************************
+    public static int hexValue ( char c ) throws NumberFormatException {
+	int v = c < 128 ? hexValues[c] : -1;
+	if ( v < 0 ) 
+	    throw new NumberFormatException("Invalid hex digit: `" + c + "'");
+	return v;
+    }
+
 // ******* hexStrToData ********************************************************
     public static byte[] hexStrToData( String str ) throws NumberFormatException {
 	if ( str.length() % 2 != 0 ) 
 	    throw new NumberFormatException("Invalid length of string");
 	byte[] buf = new byte[str.length() >> 1];
-	for ( int i=0; i<buf.length; i++) {
-	    buf[i] = (byte) Integer.parseInt( str.substring(i*2,i*2+2), 16);
-	}
+	hexStrToData( str, 0, buf, 0, buf.length );
 	return buf;
     }
 
     public static void hexStrToData( String str, byte[] buf ) throws NumberFormatException {
 	if ( str.length()<buf.length*2 ) 
 	    throw new NumberFormatException("Invalid length of string");
-	for ( int i=0; i<buf.length; i++) {
-	    buf[i] = (byte) Integer.parseInt( str.substring(i*2,i*2+2), 16);
-	}
+	hexStrToData( str, 0, buf, 0, buf.length );
+    }
+
+// decodes len bytes starting at character offs directly into buf
+    public static void hexStrToData( CharSequence str, int offs, byte[] buf, int bufOffs, int len ) throws NumberFormatException {
+	if ( offs + len*2 > str.length() ) 
+	    throw new NumberFormatException("Invalid length of string");
+	for ( int i=0; i<len; i++ ) 
+	    buf[bufOffs+i] = (byte) ( (hexValue(str.charAt(offs+i*2)) << 4) | hexValue(str.charAt(offs+i*2+1)) );
     }
 
 // ******* hexStrToData2 ********************************************************
@@ -931,21 +6298,31 @@ class BTCMiner implements MsgObj  {
 	if ( str.length()<buf.length*2 ) 
 	    throw new NumberFormatException("Invalid length of string");
 	for ( int i=0; i<buf.length; i++) {
-	    buf[i] = (byte) (Integer.parseInt( str.substring(i*2,i*2+1), 16) + Integer.parseInt( str.substring(i*2+1,i*2+2), 16)*16);
+	    buf[i] = (byte) ( hexValue(str.charAt(i*2)) | (hexValue(str.charAt(i*2+1)) << 4) );
 	}
     }
 
 // ******* dataToHexStr ********************************************************
     public static String dataToHexStr (byte[] data)  {
-	final char hexchars[] = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
-	char[] buf = new char[data.length*2];
-	for ( int i=0; i<data.length; i++) {
-	    buf[i*2+0] = hexchars[(data[i] & 255) >> 4];
-	    buf[i*2+1] = hexchars[(data[i] & 15)];
-	}
+	return dataToHexStr( data, 0, data.length );
+    }
+
+    public static String dataToHexStr (byte[] data, int offs, int len)  {
+	char[] buf = new char[len*2];
+	dataToHex( data, offs, len, buf, 0 );
 	return new String(buf);
     }
 
+// ******* dataToHex ***********************************************************
+// encodes len bytes starting at offs directly into dst
+    public static void dataToHex (byte[] data, int offs, int len, char[] dst, int dstOffs)  {
+	for ( int i=0; i<len; i++) {
+	    int b = data[offs+i] & 255;
+	    dst[dstOffs+i*2+0] = hexChars[b >> 4];
+	    dst[dstOffs+i*2+1] = hexChars[b & 15];
+	}
+    }
+
 // ******* dataToInt **********************************************************
     public static int dataToInt (byte[] buf, int offs)  {
 	if ( offs + 4 > buf.length )
@@ -972,7 +6349,12 @@ class BTCMiner implements MsgObj  {
 
 // ******* intToHexStr ********************************************************
     public static String intToHexStr (int n)  {
-	return dataToHexStr( reverse( intToData ( n ) ) );
+	char[] buf = new char[8];
+	for ( int i=7; i>=0; i-- ) {
+	    buf[i] = hexChars[n & 15];
+	    n >>>= 4;
+	}
+	return new String(buf);
     }
 
 // ******* reverse ************************************************************
@@ -1056,75 +6438,10 @@ class BTCMiner implements MsgObj  {
 
 
 // ******* sha256_transform ****************************************************
+// convenience wrapper, allocates a Sha256 instance; miners use their own engine
     public static void sha256_transform(byte[] state, int state_offs, byte[] data, int data_offs, byte[] out, int out_offs) throws NumberFormatException {
-	if ( state.length < state_offs+32 )
-	    throw new NumberFormatException("Invalid length of state");
-	if ( data.length < data_offs+64 )
-	    throw new NumberFormatException("Invalid length of data");
-	if ( out.length < out_offs+32 )
-	    throw new NumberFormatException("Invalid length of out");
-
-      final int[] k = {
-         0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5,
-         0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
-         0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3,
-         0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
-         0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc,
-         0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
-         0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
-         0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
-         0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13,
-         0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
-         0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3,
-         0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
-         0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5,
-         0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
-         0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208,
-         0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
-     };
-
-      int A = dataToInt(state,state_offs+0);
-      int B = dataToInt(state,state_offs+4);
-      int C = dataToInt(state,state_offs+8);
-      int D = dataToInt(state,state_offs+12);
-      int E = dataToInt(state,state_offs+16);
-      int F = dataToInt(state,state_offs+20);
-      int G = dataToInt(state,state_offs+24);
-      int H = dataToInt(state,state_offs+28);
-      int T, T2;
-      int[] wBuf = new int[64];
-
-      for (int i = 0; i < 16; i++) 
-         wBuf[i] = dataToInt(data, data_offs+4*i);
-
-      for (int i = 16; i < 64; i++) {
-         T = wBuf[i - 2];
-         T2 = wBuf[i - 15];
-         wBuf[i] = (((T >>> 17) | (T << 15)) ^ ((T >>> 19) | (T << 13)) ^ (T >>> 10)) + wBuf[i - 7] + (((T2 >>> 7) | (T2 << 25)) ^ ((T2 >>> 18) | (T2 << 14)) ^ (T2 >>> 3)) + wBuf[i - 16];
-      }
-
-      for (int i=0; i < 64; i++) {
-         T = H + (((E >>> 6) | (E << 26)) ^ ((E >>> 11) | (E << 21)) ^ ((E >>> 25) | (E << 7))) + ((E & F) ^ (~E & G)) + k[i] + wBuf[i];
-         T2 = (((A >>> 2) | (A << 30)) ^ ((A >>> 13) | (A << 19)) ^ ((A >>> 22) | (A << 10))) + ((A & B) ^ (A & C) ^ (B & C));
-         H = G;
-         G = F;
-         F = E;
-         E = D + T;
-         D = C;
-         C = B;
-         B = A;
-         A = T + T2;
-      }
-
-      intToData( A+dataToInt(state,state_offs+0), out, out_offs+0 );
-      intToData( B+dataToInt(state,state_offs+4), out, out_offs+4 );
-      intToData( C+dataToInt(state,state_offs+8), out, out_offs+8 );
-      intToData( D+dataToInt(state,state_offs+12), out, out_offs+12 );
-      intToData( E+dataToInt(state,state_offs+16), out, out_offs+16 );
-      intToData( F+dataToInt(state,state_offs+20), out, out_offs+20 );
-      intToData( G+dataToInt(state,state_offs+24), out, out_offs+24 );
-      intToData( H+dataToInt(state,state_offs+28), out, out_offs+28 );
-   }
+	new Sha256().transform(state, state_offs, data, data_offs, out, out_offs);
+    }
 
     public static void printBus ( ZtexScanBus1 bus ) {
 	for (int i=0; i<bus.numberOfDevices(); i++ ) {
@@ -1144,6 +6461,8 @@ class BTCMiner implements MsgObj  {
 // ******* non-static methods **************************************************
 // *****************************************************************************
     private Ztex1v1 ztex = null;
+    private MinerDevice device = null;
+    private ZtexMinerDevice ztexDevice = null;	// null if the miner has no USB hardware
     private int fpgaNum = 0;
     
     public int numNonces, offsNonces, freqM, freqMDefault, freqMaxM, extraSolutions;
@@ -1154,9 +6473,6 @@ class BTCMiner implements MsgObj  {
     public String fatalError = null;
     private boolean suspendSupported = false;
 
-    public int ioErrorCount[] = new int[maxRpcCount];
-    public long disableTime[] = new long[maxRpcCount];
-        
     public int rpcNum = 0;
     private int prevRpcNum = 0;
     
@@ -1166,14 +6482,26 @@ class BTCMiner implements MsgObj  {
     public Vector<LogString> logBuf = new Vector<LogString>();
 
     private byte[] dataBuf = new byte[128];
-    private byte[] dataBuf2 = new byte[128];
+
     private byte[] midstateBuf = new byte[32];
     private byte[] sendBuf = new byte[44];
-    private byte[] hashBuf = hexStrToData("00000000000000000000000000000000000000000000000000000000000000000000008000000000000000000000000000000000000000000000000000010000");
+    private byte[] hashBuf = new byte[64];
     private byte[] targetBuf = hexStrToData("ffffffffffffffffffffffffffffffffffffffffffffffffffffffff00000000");
     private double difficulity = 1.0;
+
+    private Sha256 sha256 = new Sha256();
+    private BatchNonceVerifier verifier = new BatchNonceVerifier();
+    private Sha256 fetchSha256 = new Sha256();		// used by fetchWork which may run in the prefetch threads
+    private WorkQueue workQueue = new WorkQueue( this );
+    private FreqController freqController = modelFreqControl ? new ModelFreqController() : new LegacyFreqController();
+    private ThermalGovernor governor = new ThermalGovernor();
+    private TempSampler tempSampler = null;
+    static final int[] checkOffs = { 0, 1, -1, 2, -2 };
+    private int[] checkBuf, expectedBuf, checkIdx;	// candidates for the batch verifier
+    private boolean[] matchBuf, nonceValid;
     
     private int newCount = 0;
+    private WorkUnit rollSource = null;		// last work unit, used for ntime rolling
 
     public boolean isRunning = false;
     public boolean suspended = false;
@@ -1186,18 +6514,25 @@ class BTCMiner implements MsgObj  {
     public double totalSubmittedCount = 0.0;
     public long startTime, startTimeAdjust;
     
-    public int overflowCount = 0;
-    public long usbTime = 0;
-    public double getTime = 0.0; 
-    public double getTimeW = 1e-6; 
-    public double submitTime = 0.0; 
-    public double submitTimeW = 1e-6; 
+    public long usbTime = 0;		// USB time of the current poll, used by the PollLoop
+
+    // metrics, see initMetrics
+    public Counter overflows = null;
+    public String metricsTags = null;	// device and bus, used by the MetricsServer
+    public double temperature = Double.NaN;	// last temperature reading
+    private Histogram usbReadTime, usbSendTime, usbFreqTime;
+    private Counter noncesChecked, noncesInvalid;
+    public int fetchedCount = 0;	// work units from the pools
+    public int rolledCount = 0;		// work units generated by ntime rolling
+
     
     public long maxPollInterval = 20000;
+    public long nextPollTime = 0;		// used by the PollLoop
     public long infoInterval = 15000;
     
     public long lastGetWorkTime = 0;
     public long ignoreErrorTime = 0;
+    private Random random = TraceReplay.fileName != null ? new Random( 0 ) : new Random();	// seeded for reproducible replays
     public long lastInfoTime = 0;
         
     public double[] errorCount = new double[256];
@@ -1245,14 +6580,17 @@ class BTCMiner implements MsgObj  {
     	    }
     	}
     	    
-        if ( ! ztex.valid() || ztex.dev().productId(0)!=10 || ztex.dev().productId(2)!=1 )
-    	    throw new FirmwareException("Wrong or no firmware");
-    	    
+	if ( ! ztex.valid() || ztex.dev().productId(0)!=10 || ztex.dev().productId(2)!=1 )
+	    throw new FirmwareException("Wrong or no firmware");
+
+	ztexDevice = new ZtexMinerDevice( ztex, fpgaNum );
+	device = traceDevice( ztexDevice );
 	getDescriptor();    	    
-	
+
 	goldenNonce = new int[numNonces*(1+extraSolutions)];
 	nonce = new int[numNonces];
 	hash7 = new int[numNonces];
+	allocCheckBuffers();
 	
 	name = bitFileName+"-"+ztex.dev().snString();
     	msg( "New device: "+ descriptorInfo() );
@@ -1274,8 +6612,7 @@ class BTCMiner implements MsgObj  {
 	    fpgaMap = new int[ztex.numberOfFpgas()];
     	    for (int i=0; i<ztex.numberOfFpgas(); i++ ) {
     		try {
-		    ztex.selectFpga(i);
-		    msg("FPGA "+ (i+1) + ": configuration time: " + ( forceEP0Config ? ztex.configureFpgaLS( "fpga/"+bitFileName+".bit" , true, 2 ) : ztex.configureFpga( "fpga/"+bitFileName+".bit" , true, 2 ) ) + " ms");
+		    msg("FPGA "+ (i+1) + ": configuration time: " + new ZtexMinerDevice( ztex, i ).configureFpga( "fpga/"+bitFileName+".bit", forceEP0Config ) + " ms");
     		    try {
     			Thread.sleep( 100 );
     		    }
@@ -1297,6 +6634,8 @@ class BTCMiner implements MsgObj  {
 	    throw new FirmwareException("No FPGA's found");
 
 	fpgaNum = fpgaMap[0];
+	ztexDevice = new ZtexMinerDevice( ztex, fpgaNum );
+	device = traceDevice( ztexDevice );
 	name += "-" + (fpgaNum+1);
     	msg( "New FPGA" );
 	freqM = -1;
@@ -1311,15 +6650,11 @@ class BTCMiner implements MsgObj  {
 	    maxErrorRate[i] = 0;
 	}
 	maxHashRate = freqMDefault + 1.0;
+	loadProfile();
 	
 	startTime = new Date().getTime();
 	startTimeAdjust = startTime;
 	
-	for (int i=0; i<rpcCount; i++) {
-	    disableTime[i] = 0;
-	    ioErrorCount[i] = 0;
-	}
-	
 	if ( newBlockMonitor == null ) {
 	    newBlockMonitor = new NewBlockMonitor();
 	}
@@ -1339,14 +6674,17 @@ class BTCMiner implements MsgObj  {
 	ztex  = pZtex;
 	fpgaNum = pFpgaNum;
 
-        if ( ! ztex.valid() || ztex.dev().productId(0)!=10 || ztex.dev().productId(2)!=1 || ( ztex.dev().productId(3)<1 && ztex.dev().productId(3)>2 ) )
-    	    throw new FirmwareException("Wrong or no firmware");
-    	    
+	if ( ! ztex.valid() || ztex.dev().productId(0)!=10 || ztex.dev().productId(2)!=1 || ( ztex.dev().productId(3)<1 && ztex.dev().productId(3)>2 ) )
+	    throw new FirmwareException("Wrong or no firmware");
+
+	ztexDevice = new ZtexMinerDevice( ztex, fpgaNum );
+	device = traceDevice( ztexDevice );
 	getDescriptor();    	    
 
 	goldenNonce = new int[numNonces*(1+extraSolutions)];
 	nonce = new int[numNonces];
 	hash7 = new int[numNonces];
+	allocCheckBuffers();
 	
 	name = bitFileName+"-"+ztex.dev().snString()+"-"+(fpgaNum+1);
     	
@@ -1369,15 +6707,67 @@ class BTCMiner implements MsgObj  {
 	    maxErrorRate[i] = 0;
 	}
 	maxHashRate = freqMDefault + 1.0;
+	loadProfile();
 	
 	startTime = new Date().getTime();
 	startTimeAdjust = startTime;
 	
-	for (int i=0; i<rpcCount; i++) {
-	    disableTime[i] = 0;
-	    ioErrorCount[i] = 0;
+    }
+
+// ******* allocCheckBuffers ***************************************************
+    private void allocCheckBuffers () {
+	int n = numNonces * Math.max( checkOffs.length, 1+extraSolutions );
+	checkBuf = new int[n];
+	expectedBuf = new int[n];
+	checkIdx = new int[n];
+	matchBuf = new boolean[n];
+	nonceValid = new boolean[numNonces];
+    }
+
+    // miner without USB hardware, e.g. SimulatedMinerDevice; ztex() returns null
+    public BTCMiner ( MinerDevice pDevice, boolean v ) throws UsbException, FirmwareException, NoSuchAlgorithmException {
+	digest = MessageDigest.getInstance("SHA-256");
+	verbose = v;
+
+	device = traceDevice( pDevice );
+	getDescriptor();    	    
+
+	goldenNonce = new int[numNonces*(1+extraSolutions)];
+	nonce = new int[numNonces];
+	hash7 = new int[numNonces];
+	allocCheckBuffers();
+
+	numberOfFpgas = 1;
+	fpgaMap = new int[1];
+	name = bitFileName+"-"+device.snString()+"-1";
+	msg( "New device: "+ descriptorInfo() );
+
+	freqM = -1;
+	updateFreq();
+	lastInfoTime = new Date().getTime();
+
+	for (int i=0; i<255; i++) {
+	    errorCount[i] = 0;
+	    errorWeight[i] = 0;
+	    errorRate[i] = 0;
+	    maxErrorRate[i] = 0;
+	}
+	maxHashRate = freqMDefault + 1.0;
+	loadProfile();
+
+	startTime = new Date().getTime();
+	startTimeAdjust = startTime;
+
+
+	if ( newBlockMonitor == null ) {
+	    newBlockMonitor = new NewBlockMonitor();
 	}
-	
+    }
+
+// ******* traceDevice *********************************************************
+// adds the trace recorder if tracing is enabled (see -tr)
+    private MinerDevice traceDevice ( MinerDevice d ) {
+	return traceFile != null ? new TraceMinerDevice( d, d.snString() + "-" + (fpgaNum+1) ) : d;
     }
 
 // ******* ztex ****************************************************************
@@ -1385,6 +6775,11 @@ class BTCMiner implements MsgObj  {
 	return ztex;
     }
 
+// ******* device **************************************************************
+    public MinerDevice device() {
+	return device;
+    }
+
 // ******* numberofFpgas *******************************************************
     public int numberOfFpgas() {
 	return numberOfFpgas;
@@ -1392,7 +6787,7 @@ class BTCMiner implements MsgObj  {
 
 // ******* selectFpga **********************************************************
     public void selectFpga() throws UsbException, InvalidFirmwareException, IndexOutOfBoundsException {
-	ztex.selectFpga(fpgaNum);
+	ztexDevice.selectFpga();
     }
 
 // ******* fpgaNum *************************************************************
@@ -1443,67 +6838,40 @@ class BTCMiner implements MsgObj  {
 
 // ******* httpGet *************************************************************
     public static String httpGet(MsgObj msgObj, String url, String user, String passw, String request) throws MalformedURLException, IOException {
-	HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
-        con.setRequestMethod("POST");
-        con.setConnectTimeout((int) Math.round(2000.0*BTCMiner.connectionEffort));
-        con.setReadTimeout(url == longPollURL ? 1000000 : (int) Math.round(2000.0*BTCMiner.connectionEffort));
-        con.setRequestProperty("Authorization", "Basic " + encodeBase64(user + ":" + passw));
-        con.setRequestProperty("Accept-Encoding", "gzip,deflate");
-        con.setRequestProperty("Content-Type", "application/json");
-	con.setRequestProperty("Cache-Control", "no-cache");
-        con.setRequestProperty("User-Agent", "ztexBTCMiner");
-        con.setRequestProperty("X-Mining-Extensions", "longpoll midstate submitold");
-        con.setRequestProperty("Content-Length", "" + request.length());
-        con.setUseCaches(false);
-        con.setDoInput(true);
-        con.setDoOutput(true);
-        
-        // Send request
-        OutputStreamWriter wr = new OutputStreamWriter ( con.getOutputStream ());
-        wr.write(request);
-        wr.flush();
-        wr.close();
-
-        // read response header
-        String str = con.getHeaderField("X-Reject-Reason");
-        if( str != null && ! str.equals("") && ! str.equals("high-hash") && ! str.equals("stale-prevblk") && ! str.equals("duplicate") ) {
-            msgObj.msg("Warning: Rejected block: " + str);
-        } 
-
-        // read response header
-    	str = con.getHeaderField("X-Long-Polling");
-        if ( str != null && ! str.equals("") && longPollURL==null ) {
-    	    synchronized ( BTCMiner.newBlockMonitor ) {
-    		if ( longPollURL==null ) {
-    		    longPollURL = (str.length()>7 && str.substring(0,4).equalsIgnoreCase("http") ) ? str : url+str;
-    		    msgObj.msg("Using LongPolling URL " + longPollURL);
-    		    longPollUser = user;
-    		    longPollPassw = passw;
-    		}
-    	    }
-        }
+	return httpRequest( msgObj, url, user, passw, request ).body();
+    }
 
-        // read response	
-        InputStream is;
-        if ( con.getContentEncoding() == null )
-    	    is = con.getInputStream();
-    	else if ( con.getContentEncoding().equalsIgnoreCase("gzip") )
-    	    is = new GZIPInputStream(con.getInputStream());
-    	else if (con.getContentEncoding().equalsIgnoreCase("deflate") )
-            is = new InflaterInputStream(con.getInputStream());
-        else
-    	    throw new IOException( "httpGet: Unknown encoding: " + con.getContentEncoding() );
-
-        byte[] buf = new byte[1024];
-        StringBuffer response = new StringBuffer(); 
-        int len;
-        while ( (len = is.read(buf)) > 0 ) {
-            response.append(new String(buf,0,len));
-        }
-        is.close();
-        con.disconnect();
-        
-        return response.toString();
+// ******* httpRequest *********************************************************
+// same as httpGet but returns the response including the header
+    public static HttpResponse httpRequest(MsgObj msgObj, String url, String user, String passw, String request) throws MalformedURLException, IOException {
+	return httpRequest( msgObj, url, user, passw, request, true );
+    }
+
+// resend: the request may be repeated on a stale connection, false for share submissions
+    public static HttpResponse httpRequest(MsgObj msgObj, String url, String user, String passw, String request, boolean resend) throws MalformedURLException, IOException {
+	int timeout = (int) Math.round(2000.0*BTCMiner.connectionEffort);
+	HttpResponse r = HttpTransport.get( url, user, passw ).request( request, resend, timeout, url == longPollURL ? 1000000 : timeout );
+
+	// read response header
+	String str = r.header("X-Reject-Reason");
+	if( str != null && ! str.equals("") && ! str.equals("high-hash") && ! str.equals("stale-prevblk") && ! str.equals("duplicate") ) {
+	    msgObj.msg("Warning: Rejected block: " + str);
+	} 
+
+	// read response header
+	str = r.header("X-Long-Polling");
+	if ( str != null && ! str.equals("") && longPollURL==null ) {
+	    synchronized ( BTCMiner.newBlockMonitor ) {
+		if ( longPollURL==null ) {
+		    longPollURL = (str.length()>7 && str.substring(0,4).equalsIgnoreCase("http") ) ? str : url+str;
+		    msgObj.msg("Using LongPolling URL " + longPollURL);
+		    longPollUser = user;
+		    longPollPassw = passw;
+		}
+	    }
+	}
+
+	return r;
     }
 
 /*    String httpGet(String request) throws MalformedURLException, IOException {
@@ -1512,66 +6880,122 @@ class BTCMiner implements MsgObj  {
 
 // ******* bitcoinRequest ******************************************************
     public static String bitcoinRequest( MsgObj msgObj, String url, String user, String passw, String request, String params) throws MalformedURLException, IOException {
+	return bitcoinHttpRequest( msgObj, url, user, passw, request, params ).body();
+    }
+
+    public static HttpResponse bitcoinHttpRequest( MsgObj msgObj, String url, String user, String passw, String request, String params) throws MalformedURLException, IOException {
 	bcid += 1;
-	return httpGet( msgObj, url, user, passw, "{\"jsonrpc\":\"1.0\",\"id\":" + bcid + ",\"method\":\""+ request + "\",\"params\":["+ (params.equals("") ? "" : ("\""+params+"\"")) + "]}" );
+	return httpRequest( msgObj, url, user, passw, "{\"jsonrpc\":\"1.0\",\"id\":" + bcid + ",\"method\":\""+ request + "\",\"params\":["+ (params.equals("") ? "" : ("\""+params+"\"")) + "]}", params.equals("") );
     }
 
     public String bitcoinRequest( String request, String params) throws MalformedURLException, IOException {
 	String s = bitcoinRequest( this, rpcurl[rpcNum], rpcuser[rpcNum], rpcpassw[rpcNum], request, params );
-        ioErrorCount[rpcNum] = 0;
+	WorkSource.success( rpcNum );
         return s;
     }
 
 
-// ******* getWork *************************************************************
-    public boolean getWork() throws UsbException, MalformedURLException, IOException, ParserException {
 
-	long t = new Date().getTime();
-    
-	int i = 0;
-	while ( i<rpcCount && (disableTime[i]>t) ) 
-	    i++;
-	if ( i >= rpcCount )
-	    return false;
 
-	rpcNum = i;	
-	String response = bitcoinRequest("getwork","" );
-	t = new Date().getTime() - t;
-	getTime = getTime * 0.99 + t;
-	getTimeW = getTimeW * 0.99 + 1;
+// ******* fetchWork ***********************************************************
+// requests work from pool rpc, the result is ready for being sent to the FPGA
+// called by the prefetch threads of the WorkQueue
+    public WorkUnit fetchWork( int rpc ) throws MalformedURLException, IOException, ParserException {
+	WorkUnit w = new WorkUnit();
+	w.rpcNum = rpc;
 
-        try {
-	    hexStrToData(jsonParse(response,"data"), dataBuf2);
-	    newBlockMonitor.checkNew( dataBuf2 );
-	}
-	catch ( NumberFormatException e ) {
+	long t = System.nanoTime();
+	HttpResponse response = null;
+	String rollNTime = null;
+	if ( StratumClient.isStratum(rpcurl[rpc]) ) 
+	    StratumClient.get( rpcurl[rpc], rpcuser[rpc], rpcpassw[rpc] ).getWork( w );
+	else {
+	    response = bitcoinHttpRequest( this, rpcurl[rpc], rpcuser[rpc], rpcpassw[rpc], "getwork", "" );
+	    rollNTime = response.header("X-Roll-NTime");
 	}
+	WorkSource.success( rpc, t );
+	Metrics.histogram( "getwork_time", "pool", rpcurl[rpc] ).recordSince( t );
 
-	if ( newCount >= newBlockMonitor.newCount || newBlockMonitor.submitOld ) {
-	    while ( getNonces() ) {}
-        }
+	JsonRpcResponse j = response != null ? response.reader().read( new JsonRpcResponse(w.data, w.target) ) : null;
+	completeWork( w, j, rollNTime );
+	return w;
+    }
 
-	newCount = newBlockMonitor.newCount;
-	
-	try {
-	    hexStrToData(jsonParse(response,"data"), dataBuf);
+// ******* completeWork ********************************************************
+// evaluates the getwork response j (null for stratum pools) and calculates the
+// midstate, called by fetchWork and by the WorkBroker 
+    public void completeWork( WorkUnit w, JsonRpcResponse j, String rollNTime ) throws ParserException {
+	w.time = new Date().getTime();
+
+	// ntime rolling: "Y" or "expire=<seconds>"
+	if ( rollNTime != null && maxRollNTime > 0 && rollNTime.length() > 0 && ! rollNTime.equalsIgnoreCase("N") ) {
+	    int e = rollExpire;
+	    if ( rollNTime.toLowerCase().startsWith("expire=") ) {
+		try {
+		    e = Math.min( e, Integer.parseInt(rollNTime.substring(7).trim()) );
+		}
+		catch ( NumberFormatException ex ) {
+		}
+	    }
+	    w.maxRolls = maxRollNTime;
+	    w.expire = w.time + e*1000L;
 	}
-	catch ( NumberFormatException e ) {
-	    throw new ParserException( e.getLocalizedMessage() );
+
+
+	if ( j != null ) {
+	    if ( ! j.hasData ) 
+		throw new ParserException( j.error != null ? "getwork failed: " + j.error : "No or invalid data in getwork response" );
+	    if ( ! targetCheck || ! j.hasTarget ) 
+		hexStrToData("ffffffffffffffffffffffffffffffffffffffffffffffffffffffff00000000", w.target);
 	}
 
+	newBlockMonitor.checkNew( w.data );
+	w.newCount = newBlockMonitor.newCount;
 	
-	
-	try {
-	    if ( targetCheck ) {
-		hexStrToData(jsonParse(response,"target"), targetBuf);
-	    }
-	    else {
-		hexStrToData("ffffffffffffffffffffffffffffffffffffffffffffffffffffffff00000000", targetBuf);
+	boolean b = false;
+	int k = w.data.length - sha256_pad1.length;
+	for ( int i=0; i<sha256_pad1.length; i++ ) 
+	    if ( sha256_pad1[i] != w.data[k+i] ) {
+		b=true;
+		w.data[k+i] = sha256_pad1[i];
 	    }
+	if ( b ) 
+	    msg("Warning: Invalid data from " + rpcurl[w.rpcNum]);
+
+	synchronized ( fetchSha256 ) {
+	    fetchSha256.transform( sha256_init_state,0, w.data,0, w.midstate,0);
 	}
-	catch ( Exception e ) {
-	    hexStrToData("ffffffffffffffffffffffffffffffffffffffffffffffffffffffff00000000", targetBuf);	
+	TraceMinerDevice.recordWork( w );
+    }
+
+// ******* getWork *************************************************************
+// takes the next work unit from the prefetch queue, returns false if no work 
+// is available yet (the FPGA continues with the old work in this case)
+    public boolean getWork() throws UsbException, MalformedURLException, IOException, ParserException {
+	WorkUnit w = null;
+	if ( rollSource != null && rollSource.newCount >= newBlockMonitor.newCount && ! WorkSource.disabled(rollSource.rpcNum) ) {
+	    w = rollSource.roll();
+	    if ( w != null )
+		rolledCount += 1;
+	}
+	if ( w == null ) 
+	    w = workQueue.take();
+	if ( w == null ) 
+	    return false;
+	if ( w.rolls == 0 ) 
+	    fetchedCount += 1;
+
+	if ( newCount >= newBlockMonitor.newCount || newBlockMonitor.submitOld ) {
+	    while ( getNonces() ) {}
+        }
+
+	newCount = newBlockMonitor.newCount;
+	
+	for ( int i=0; i<128; i++ )
+	    dataBuf[i] = w.data[i];
+	for ( int i=0; i<32; i++ ) {
+	    midstateBuf[i] = w.midstate[i];
+	    targetBuf[i] = w.target[i];
 	}
 	
 	double d = 1.0;
@@ -1582,50 +7006,84 @@ class BTCMiner implements MsgObj  {
 	}
 	difficulity = d / difficulity;
 
-	boolean b = false;
-	int k = dataBuf.length - sha256_pad1.length;
-	for ( int j=0; j<sha256_pad1.length; j++ ) 
-	    if ( sha256_pad1[j] != dataBuf[k+j] ) {
-		b=true;
-		dataBuf[k+j] = sha256_pad1[j];
-	    }
-	if ( b ) 
-	    msg("Warning: Invalid data from " + rpcurl[rpcNum]);
-
+	verifier.setWork( midstateBuf, dataBuf, targetBuf );
 
-	sha256_transform( sha256_init_state,0, dataBuf,0, midstateBuf,0);
-		
-	lastGetWorkTime = new Date().getTime();
-	prevRpcNum = i;
+	lastGetWorkTime = deviceTime();
+	rpcNum = w.rpcNum;
+	prevRpcNum = w.rpcNum;
+	rollSource = w.maxRolls > 0 ? w : null;
 	return true;
     }
 
+// ******* prefetchWork ********************************************************
+// refills the prefetch queue shortly before checkUpdate requests new work, i.e.
+// the queued work is fresh if it is used. Prefetching is only required if the 
+// work cannot be rolled.
+    public void prefetchWork () {
+	if ( rollSource != null && rollSource.rolls < rollSource.maxRolls && rollSource.expire > new Date().getTime() ) 
+	    return;
+	if ( workDue() < WorkQueue.maxAge / 2 ) 
+	    workQueue.refill();
+    }
+
 // ******* submitWork **********************************************************
+// hands the share over to the submit queue, the HTTP request is done by the submit threads
     public void submitWork( int n ) throws MalformedURLException, IOException {
-	long t = new Date().getTime();
-
 	intToData(n, dataBuf, 76);
 
 	dmsg( "Submitting new nonce " + intToHexStr(n) );
-	if ( blkLogFile != null )
-	    blkLogFile.println( dateFormat.format( new Date() ) + ": " + name + ": submitted " + dataToHexStr(dataBuf) + " to " + rpcurl[rpcNum]);
-	String response = bitcoinRequest( "getwork", dataToHexStr(dataBuf) );
-	String err = null;
-	try {
-	    err = jsonParse(response,"error");
-	}
-	catch ( ParserException e ) {
-	}
-	if ( err!=null && !err.equals("null") && !err.equals("") ) 
-	    msg( "Error attempting to submit new nonce: " + err );
+	SubmitQueue.submit( this, rpcNum, dataBuf );
 
 	for (int i=lastGoldenNonces.length-1; i>0; i-- )
 	    lastGoldenNonces[i]=lastGoldenNonces[i-1];
 	lastGoldenNonces[0] = n;
+    }
+
+// ******* submitShare *********************************************************
+// sends a share to the pool, called by the submit threads
+    public void submitShare( int rpc, byte[] data ) throws MalformedURLException, IOException {
+	long t = System.nanoTime();
+	boolean rejected = false;
+	if ( StratumClient.isStratum(rpcurl[rpc]) ) {
+	    logShare( rpc, data, null );
+	    String err = StratumClient.get( rpcurl[rpc], rpcuser[rpc], rpcpassw[rpc] ).submit( data );
+	    rejected = err != null;
+	    if ( rejected ) 
+		msg( "Error attempting to submit new nonce: " + err );
+	}
+	else {
+	    String ds = dataToHexStr(data);
+	    logShare( rpc, data, ds );
+	    HttpResponse response = bitcoinHttpRequest( this, rpcurl[rpc], rpcuser[rpc], rpcpassw[rpc], "getwork", ds );
+	    JsonRpcResponse j = new JsonRpcResponse( null, null );
+	    try {
+		response.reader().read( j );
+	    }
+	    catch ( ParserException e ) {
+	    }
+	    rejected = shareRejected( j );
+	}
+	SubmitQueue.submitted( rpc, t, rejected );
+    }
 
-	t = new Date().getTime() - t;
-	submitTime = submitTime * 0.99 + t;
-	submitTimeW = submitTimeW * 0.99 + 1;
+// ******* logShare ************************************************************
+// writes a submitted share to the block logs, ds is the data as hex string or null
+    public void logShare( int rpc, byte[] data, String ds ) throws IOException {
+	if ( blkRecordFile != null )
+	    WorkRecord.writeShare( blkRecordFile, new Date().getTime(), rpc, name, data );
+	TraceMinerDevice.recordShare( rpc, name, data );
+	if ( blkLogFile != null )
+	    blkLogFile.println( dateFormat.format( new Date() ) + ": " + name + ": submitted " + ( ds != null ? ds : dataToHexStr(data) ) + " to " + rpcurl[rpc]);
+    }
+
+// ******* shareRejected *******************************************************
+// evaluates the response to a submitted share, returns true if it has been rejected
+    public boolean shareRejected( JsonRpcResponse j ) {
+	if ( j.error!=null && !j.error.equals("") ) {
+	    msg( "Error attempting to submit new nonce: " + j.error );
+	    return true;
+	}
+	return j.result == JsonRpcResponse.FALSE;
     }
 
 // ******* initWork **********************************************************
@@ -1638,35 +7096,23 @@ class BTCMiner implements MsgObj  {
 	    dataBuf[i] = data[i];
 	for (int i=0; i<32; i++)
 	    midstateBuf[i] = midstate[i];
+	verifier.setWork( midstateBuf, dataBuf, targetBuf );
     }
 
 // ******* getHash ***********************************************************
-    public int getHash(int n) throws NumberFormatException {
-	intToData(n, dataBuf, 76);
-	sha256_transform( midstateBuf,0, dataBuf,64, hashBuf,0 );
-	sha256_transform( sha256_init_state,0, hashBuf,0, hashBuf,0 );
-	return dataToInt( hashBuf,28 );
+    public int getHash(int n) {
+	return verifier.hash7(n);
     } 
 
 // ******* compareWithTarget ***************************************************
     // returns true if smaller than or equal to target
-    public boolean compareWithTarget(int n) throws NumberFormatException {
-	intToData(n, dataBuf, 76);
-	sha256_transform( midstateBuf,0, dataBuf,64, hashBuf,0 );
-	sha256_transform( sha256_init_state,0, hashBuf,0, hashBuf,0 );
-	for ( int i=0; i<32; i++ ) {
-	    int j=i+3-2*(i%4);
-	    if ( (hashBuf[31-j] & 255) < (targetBuf[31-i] & 255) )
-		return true;
-	    if ( (hashBuf[31-j] & 255) > (targetBuf[31-i] & 255) )
-		return false;
-	}
-	return true;
+    public boolean compareWithTarget(int n) {
+	return verifier.compareWithTarget(n);
     }
 
 // ******* getMidstate *********************************************************
     public byte[] getMidstate() {
-	sha256_transform( sha256_init_state,0, dataBuf,0, hashBuf,0);
+	sha256.transform( sha256_init_state,0, dataBuf,0, hashBuf,0);
 	return hashBuf;
     }
 
@@ -1677,19 +7123,13 @@ class BTCMiner implements MsgObj  {
 	for ( int i=0; i<32; i++ ) 
 	    sendBuf[i+12] = midstateBuf[i];
 	    
-	long t = new Date().getTime();
-	synchronized (ztex) {
-	    try {
-		selectFpga();
-	    }
-	    catch ( InvalidFirmwareException e )  {
-		// shouldn't occur
-	    }
-    	    ztex.vendorCommand2( 0x80, "Send hash data", 0, 0, sendBuf, 44 );
-    	}
-        usbTime += new Date().getTime() - t;
+	initMetrics();
+	long t = System.nanoTime();
+	device.sendData( sendBuf, 44 );
+	usbSendTime.recordSince( t );
+	usbTime += (System.nanoTime() - t) / 1000000;
         
-        ignoreErrorTime = new Date().getTime() + 500; // ignore errors for next 1s
+        ignoreErrorTime = deviceTime() + 500; // ignore errors for next 1s
 	for ( int i=0; i<numNonces; i++ ) 
 	    nonce[i] = 0;
         isRunning = true;
@@ -1699,30 +7139,23 @@ class BTCMiner implements MsgObj  {
     public void setFreq (int m) throws UsbException {
 	if ( m > freqMaxM ) m = freqMaxM;
 
-	long t = new Date().getTime();
-	synchronized (ztex) {
-	    try {
-		selectFpga();
-	    }
-	    catch ( InvalidFirmwareException e )  {
-		// shouldn't occur
-	    }
-    	    ztex.vendorCommand( 0x83, "Send hash data", m, 0 );
-	}
-        usbTime += new Date().getTime() - t;
+	initMetrics();
+	long t = System.nanoTime();
+	device.setFreq( m );
+	usbFreqTime.recordSince( t );
+	usbTime += (System.nanoTime() - t) / 1000000;
 
-        ignoreErrorTime = new Date().getTime() + 2000; // ignore errors for next 2s
+        ignoreErrorTime = deviceTime() + 2000; // ignore errors for next 2s
     }
 
 // ******* suspend *************************************************************
     public boolean suspend ( )  {
-        suspended = true;
+	suspended = true;
+	if ( profileStore != null ) 
+	    profileStore.save( this, true );
 	if ( suspendSupported ) {
 	    try {
-		synchronized (ztex) {
-		    selectFpga();
-    		    ztex.vendorCommand( 0x84, "Suspend" );
-    		}
+		device.suspend();
 	    }
 	    catch ( Exception e )  {
 		msg( "Suspend command failed: " + e.getLocalizedMessage() );
@@ -1736,87 +7169,96 @@ class BTCMiner implements MsgObj  {
 	return true;
     }
 
+// ******* close ***************************************************************
+// called if the miner is disconnected or disabled
+    public void close ( ) {
+	if ( ztexDevice != null ) 
+	    ztexDevice.close();
+    }
+
+// ******* tempSampler *********************************************************
+    public synchronized TempSampler tempSampler() {
+	if ( tempSampler == null ) 
+	    tempSampler = new TempSampler( device );
+	return tempSampler;
+    }
+
+// ******* profileKey **********************************************************
+// identifies the FPGA in the profile store
+    public String profileKey() {
+	return bitFileName + "-" + device.snString() + "-" + (fpgaNum+1);
+    }
+
+// ******* loadProfile *********************************************************
+// restores the frequency/error profile from the profile store (see -fp)
+    private void loadProfile() throws UsbException {
+	if ( profileStore != null && profileStore.load(this) ) {
+	    msg( "Restored frequency profile" );
+	    updateFreq();
+	}
+    }
+
 // ******* updateFreq **********************************************************
     public void updateFreq() throws UsbException {
+	if ( profileStore != null ) 
+	    profileStore.save( this, false );
 
-	for ( int i=0; i<freqMaxM; i++ )  {
-	    if ( maxErrorRate[i+1]*i < maxErrorRate[i]*(i+20) )
-		maxErrorRate[i+1] = maxErrorRate[i]*(1.0+20.0/i);
-	}
 
-	int maxM = 0;
-	while ( maxM<freqMDefault && maxErrorRate[maxM+1]<maxMaxErrorRate )
-	    maxM++;
-	while ( maxM<freqMaxM && errorWeight[maxM]>150 && maxErrorRate[maxM+1]<maxMaxErrorRate )
-	    maxM++;
-	    
-	int bestM=0;
-	double bestR=0;
-	for ( int i=0; i<=maxM; i++ )  {
-	    double r = (i + 1 + ( i == freqM ? errorHysteresis : 0))*(1-maxErrorRate[i]);
-	    if ( r > bestR ) {
-		bestM = i;
-		bestR = r;
+	double temp = tempSampler().value();
+	temperature = temp;
+	if ( temp > tempLimit + ThermalGovernor.criticalMargin ) {
+	    try {
+		device.resetFpga();
 	    }
+	    catch ( Exception e ) {
+	    }
+	    throw new UsbException("Overheating detected: T=" + String.format("%.1f",temp) + "C. FPGA is shut down to prevent damage." );
 	}
-	
-	if ( bestM != freqM ) {
-	    msg ( "Set frequency " + ( freqM<0 ? "" : "from " + String.format("%.2f",(freqM+1)*(freqM1)) + "MHz ") + "to " + String.format("%.2f",(bestM+1)*(freqM1)) +"MHz" );
-	    freqM = bestM;
-	    setFreq( freqM );
-	}
 
-	maxM = freqMDefault;
+	int bestM = freqController.select( this );
+
+	int maxM = freqMDefault;
 	while ( maxM<freqMaxM && errorWeight[maxM+1]>100 )
 	    maxM++;
 	if ( ( bestM+1 < (1.0-overheatThreshold )*maxHashRate ) && bestM < maxM-1 )  {
-	    try {
-		synchronized (ztex) {
-		    selectFpga();
-		    ztex.resetFpga();
-		}
-	    }
-	    catch ( Exception e ) {
-	    }
-	    throw new UsbException("Hash rate drop of " + String.format("%.1f",(1.0-1.0*(bestM+1)/maxHashRate)*100) + "% detect. This may be caused by overheating. FPGA is shut down to prevent damage." );
-	}
-	
-	double temp;
-	try { 
-	    temp = ztex.tempSensorRead(fpgaNum);
-	}	    
-	catch ( Exception e ) {
-	    temp = tempLimit - 1e12;
+	    msg("Warning: Hash rate drop of " + String.format("%.1f",(1.0-1.0*(bestM+1)/maxHashRate)*100) + "% detected. This may be caused by overheating. Frequency is reduced." );
+	    governor.throttle( bestM - 2 );
+	    maxHashRate = bestM + 1.0;
 	}
-	if ( temp > tempLimit ) {
-	    try {
-		synchronized (ztex) {
-		    selectFpga();
-		    ztex.resetFpga();
-		}
-	    }
-	    catch ( Exception e ) {
-	    }
-	    throw new UsbException("Overheating detected: T=" + String.format("%.1f",temp) + "C. FPGA is shut down to prevent damage." );
+
+	int cap = governor.update( temp, tempSampler().time(), freqM, freqMaxM );
+	if ( governor.changed() ) {
+	    String ts = Double.isNaN(temp) ? "No temperature reading" : "T=" + String.format("%.1f",temp) + "C";
+	    if ( cap == ThermalGovernor.UNLIMITED ) 
+		msg( ts + ": Frequency limit removed" );
+	    else 
+		msg( ts + ( Double.isNaN(temp) ? "" : " (" + String.format("%+.1f",governor.slope()) + "C/min)" ) + ": Frequency limited to " + String.format("%.2f",(cap+1)*(freqM1)) + "MHz" );
 	}
+	if ( bestM > cap ) 
+	    bestM = cap;
 
+	if ( bestM != freqM ) {
+	    msg ( "Set frequency " + ( freqM<0 ? "" : "from " + String.format("%.2f",(freqM+1)*(freqM1)) + "MHz ") + "to " + String.format("%.2f",(bestM+1)*(freqM1)) +"MHz" );
+	    freqM = bestM;
+	    setFreq( freqM );
+	}
     }
 
 // ******* getNonces ***********************************************************
     public boolean getNonces() throws UsbException, MalformedURLException, IOException {
-	if ( !isRunning || disableTime[prevRpcNum] > new Date().getTime() ) return false;
+	if ( !isRunning || WorkSource.disabled(prevRpcNum) ) return false;
 	
 	rpcNum = prevRpcNum;
 	
 	getNoncesInt();
 	
-        if ( ignoreErrorTime < new Date().getTime() ) {
+        if ( ignoreErrorTime < deviceTime() ) {
 	    errorCount[freqM] *= 0.995;
     	    errorWeight[freqM] = errorWeight[freqM]*0.995 + 1.0;
-            for ( int i=0; i<numNonces; i++ ) {
-        	if ( ! checkNonce( nonce[i], hash7[i] ) )
-    		    errorCount[freqM] +=1.0/numNonces;
-    	    }
+	    int v = checkNonces();
+	    errorCount[freqM] += (numNonces - v) * 1.0/numNonces;
+	    noncesChecked.add( numNonces );
+	    noncesInvalid.add( numNonces - v );
     	    
 	    errorRate[freqM] = errorCount[freqM] / errorWeight[freqM] * Math.min(1.0, errorWeight[freqM]*0.01) ;
     	    if ( errorRate[freqM] > maxErrorRate[freqM] )
@@ -1825,43 +7267,104 @@ class BTCMiner implements MsgObj  {
     		maxHashRate = Math.max(maxHashRate, (freqM+1.0)*(1-errorRate[freqM]));
     	}
     	
+	int k = 0;
+	for ( int i=0; i<numNonces*(1+extraSolutions); i++ ) {
+	    if ( goldenNonce[i] != -offsNonces ) 
+		checkBuf[k++] = goldenNonce[i];
+	}
+	batchCheckTarget( k );
+
 	boolean submitted = false;
-        for ( int i=0; i<numNonces*(1+extraSolutions); i++ ) {
-    	    int n = goldenNonce[i];
-    	    if ( n != -offsNonces ) {
-    		if ( compareWithTarget(n) ) {
-    		    int j=0;
-    		    while ( j<lastGoldenNonces.length && lastGoldenNonces[j]!=n )
-    			j++;
-        	    if  (j>=lastGoldenNonces.length) {
-        	        submitWork( n );
-        		submittedCount+=1;
-        		totalSubmittedCount+=difficulity;
-        	        submitted = true;
-        	    }
-    		}
-    	    }
-        }
-        return submitted;
+	for ( int i=0; i<k; i++ ) {
+	    int n = checkBuf[i];
+	    if ( matchBuf[i] ) {
+		int j=0;
+		while ( j<lastGoldenNonces.length && lastGoldenNonces[j]!=n )
+		    j++;
+		if  (j>=lastGoldenNonces.length) {
+		    submitWork( n );
+		    submittedCount+=1;
+		    totalSubmittedCount+=difficulity;
+		    submitted = true;
+		}
+	    }
+	}
+	return submitted;
     } 
 
+// ******* batchCheckHash7 *****************************************************
+// checks checkBuf[0..count-1] against expectedBuf, results are written to matchBuf
+    private void batchCheckHash7 ( int count ) {
+	for ( int i=0; i<count; i+=BatchNonceVerifier.maxLanes ) {
+	    int c = Math.min( count-i, BatchNonceVerifier.maxLanes );
+	    long mask = verifier.checkHash7( checkBuf, expectedBuf, i, c );
+	    for ( int j=0; j<c; j++ ) 
+		matchBuf[i+j] = ( (mask >> j) & 1 ) != 0;
+	}
+    }
+
+// ******* batchCheckTarget ****************************************************
+// checks checkBuf[0..count-1] against the target, results are written to matchBuf
+    private void batchCheckTarget ( int count ) {
+	for ( int i=0; i<count; i+=BatchNonceVerifier.maxLanes ) {
+	    int c = Math.min( count-i, BatchNonceVerifier.maxLanes );
+	    long mask = verifier.checkTarget( checkBuf, i, c );
+	    for ( int j=0; j<c; j++ ) 
+		matchBuf[i+j] = ( (mask >> j) & 1 ) != 0;
+	}
+    }
+
+// ******* checkNonces *********************************************************
+// batch version of checkNonce for nonce[] and hash7[], returns the number of valid nonces
+// the other offsets are only tried for nonces that do not match at offset 0
+    private int checkNonces () {
+	for ( int i=0; i<numNonces; i++ ) {
+	    checkBuf[i] = nonce[i];
+	    expectedBuf[i] = hash7[i] + 0x5be0cd19;
+	}
+	batchCheckHash7( numNonces );
+
+	int valid = 0;
+	int k = 0;
+	for ( int i=0; i<numNonces; i++ ) {
+	    nonceValid[i] = matchBuf[i];
+	    if ( nonceValid[i] ) {
+		valid++;
+	    }
+	    else {
+		for ( int j=1; j<checkOffs.length; j++ ) {
+		    checkBuf[k] = nonce[i] + checkOffs[j];
+		    expectedBuf[k] = hash7[i] + 0x5be0cd19;
+		    checkIdx[k] = i;
+		    k++;
+		}
+	    }
+	}
+	if ( k == 0 ) 
+	    return valid;
+
+	batchCheckHash7( k );
+	for ( int j=0; j<k; j++ ) {
+	    int i = checkIdx[j];
+	    if ( matchBuf[j] && !nonceValid[i] ) {
+		nonceValid[i] = true;
+		valid++;
+	    }
+	}
+	return valid;
+    }
+
 // ******* getNoncesInt ********************************************************
     public void getNoncesInt() throws UsbException {
 	int bs = 12+extraSolutions*4;
 	byte[] buf = new byte[numNonces*bs];
 	boolean overflow = false;
 
-	long t = new Date().getTime();
-	synchronized (ztex) {
-	    try {
-		selectFpga();
-	    }
-	    catch ( InvalidFirmwareException e )  {
-	    // shouldn't occur
-	    }
-    	    ztex.vendorRequest2( 0x81, "Read hash data", 0, 0, buf, numNonces*bs );
-    	}
-        usbTime += new Date().getTime() - t;
+	initMetrics();
+	long t = System.nanoTime();
+	device.readNonces( buf, numNonces*bs );
+	usbReadTime.recordSince( t );
+	usbTime += (System.nanoTime() - t) / 1000000;
         
 //	System.out.print(dataToHexStr(buf)+"            ");
         for ( int i=0; i<numNonces; i++ ) {
@@ -1874,15 +7377,29 @@ class BTCMiner implements MsgObj  {
 		goldenNonce[i*(1+extraSolutions)+1+j] = dataToInt(buf,i*bs+12+j*4) - offsNonces;
 	}
 	if ( overflow && ! PollLoop.scanMode )
-	    overflowCount += 1;
+	    overflows.inc();
+    }
+
+// ******* initMetrics *********************************************************
+// creates the metrics of the device, the device tag is serial number and FPGA number
+    private void initMetrics () {
+	if ( overflows != null ) 
+	    return;
+	String dn = device.snString() + "-" + (fpgaNum+1);
+	String bn = device.busName();
+	metricsTags = Metrics.tags( "device", dn, "bus", bn );
+	usbReadTime = Metrics.histogram( "usb_time", "device", dn, "bus", bn, "op", "read" );
+	usbSendTime = Metrics.histogram( "usb_time", "device", dn, "bus", bn, "op", "send" );
+	usbFreqTime = Metrics.histogram( "usb_time", "device", dn, "bus", bn, "op", "freq" );
+	noncesChecked = Metrics.counter( "nonces_checked", "device", dn, "bus", bn );
+	noncesInvalid = Metrics.counter( "nonces_invalid", "device", dn, "bus", bn );
+	overflows = Metrics.counter( "nonce_overflows", "device", dn, "bus", bn );
     }
 
 // ******* checkNonce *******************************************************
     public boolean checkNonce( int n, int h ) throws UsbException {
-	int offs[] = { 0, 1, -1, 2, -2 };
-//	int offs[] = { 0 };
-	for (int i=0; i<offs.length; i++ ) {
-	    if ( getHash(n + offs[i]) == h + 0x5be0cd19 )
+	for (int i=0; i<checkOffs.length; i++ ) {
+	    if ( getHash(n + checkOffs[i]) == h + 0x5be0cd19 )
 		return true;
     	}
         return false;
@@ -1930,11 +7447,9 @@ class BTCMiner implements MsgObj  {
 	if ( errorWeight[freqM]>20 )
 	    sb.append(",  hashRate=" + String.format("%.1f", hr )+"MH/s" );
 	    
-	try { 
-	    sb.append(", T=" + String.format("%.1f",ztex.tempSensorRead(fpgaNum)) + "C");
-	}	    
-	catch ( Exception e ) {
-	}
+	double temp = tempSampler().average();
+	if ( ! Double.isNaN(temp) ) 
+	    sb.append(", T=" + String.format("%.1f",temp) + "C");
 	    
 	sb.append(",  submitted " +submittedCount+" new nonces,  luckFactor=" + String.format("%.2f", submittedHashRate()/hr+0.0049 ));
 	submittedCount = 0;
@@ -1948,8 +7463,8 @@ class BTCMiner implements MsgObj  {
     private void getDescriptor () throws UsbException, FirmwareException {
 	byte[] buf = new byte[64];
 
-        ztex.vendorRequest2( 0x82, "Read descriptor", 0, 0, buf, 64 );
-        if ( buf[0] != 5 ) {
+	device.readDescriptor( buf );
+	if ( buf[0] != 5 ) {
     	    if ( ( buf[0] != 2 ) && ( buf[0] != 4 ) ) {
     		throw new FirmwareException("Invalid BTCMiner descriptor version. Firmware must be updated.");
     	    }
@@ -1984,19 +7499,60 @@ class BTCMiner implements MsgObj  {
     	}
     }
     
+// ******* deviceTime **********************************************************
+// time in ms used for the error statistics and the work updates: the recorded 
+// time of the FPGA if a trace is replayed (see TraceReplay), otherwise the 
+// current time
+    private long deviceTime () {
+	return device instanceof ReplayMinerDevice ? ((ReplayMinerDevice) device).time() : new Date().getTime();
+    }
+
 // ******* checkUpdate **********************************************************
     public boolean checkUpdate() {
-	long t = new Date().getTime();
+	long t = deviceTime();
 	if ( !isRunning ) return true;
 	if ( ignoreErrorTime > t ) return false;
 	if ( newCount < newBlockMonitor.newCount) return true;
-	if ( disableTime[prevRpcNum] > t ) return true;
+	if ( WorkSource.disabled(prevRpcNum) ) return true;
 	if ( lastGetWorkTime + maxPollInterval < t ) return true;
 	for ( int i=0; i<numNonces ; i++ )
-	    if ( ((nonce[i]>>1) & 0x7fffffff) > (0x38000000 + Math.round(Math.random()*0x10000000)) ) return true;
+	    if ( ((nonce[i]>>1) & 0x7fffffff) > (0x38000000 + Math.round(random.nextDouble()*0x10000000)) ) return true;
 	return false;
     }
 
+// ******* pollInterval ********************************************************
+// Predicts the time until the FPGA should be polled again, i.e. the minimum of
+//   - the time until checkUpdate requests new work because the nonce range is half exhausted,
+//   - the time until 0.1 golden nonces per FIFO entry are expected (the FIFO holds 1+extraSolutions nonces),
+//   - the time until maxPollInterval expires.
+// The result is limited to PollLoop.minQueryInterval ... PollLoop.maxQueryInterval.
+    public long pollInterval () {
+	long t = PollLoop.maxQueryInterval;
+	if ( suspended ) 
+	    return t;
+	if ( !isRunning || ignoreErrorTime > deviceTime() ) 
+	    return PollLoop.minQueryInterval;
+
+	double hr = (freqM+1) * freqM1 * 1e3 * hashesPerClock / numNonces;	// hashes per ms and core 
+	if ( hr > 0 ) 
+	    t = Math.min( t, Math.round( 0.1 * (1+extraSolutions) * 4294967296.0 / hr ) );
+	t = Math.min( t, workDue() );
+	return Math.max( t, PollLoop.minQueryInterval );
+    }
+
+// ******* workDue *************************************************************
+// predicts the time in ms until checkUpdate requests new work, i.e. until the
+// nonce range is half exhausted or maxPollInterval expires
+    private long workDue () {
+	long t = lastGetWorkTime + maxPollInterval - deviceTime();
+	double hr = (freqM+1) * freqM1 * 1e3 * hashesPerClock / numNonces;	// hashes per ms and core 
+	if ( hr > 0 ) {
+	    for ( int i=0; i<numNonces ; i++ )
+		t = Math.min( t, Math.round( ( 0x70000000L - (nonce[i] & 0xffffffffL) ) / hr ) );
+	}
+	return t;
+    }
+
 // ******* descriptorInfo ******************************************************
     public String descriptorInfo () {
 	return "bitfile=" + bitFileName + "   f_default=" + String.format("%.2f",freqM1 * (freqMDefault+1)) + "MHz  f_max=" + String.format("%.2f",freqM1 * (freqMaxM+1))+ "MHz  HpC="+hashesPerClock+"H";
@@ -2004,6 +7560,8 @@ class BTCMiner implements MsgObj  {
 
 // ******* resetCounters ******************************************************
     public void resetCounters () {
+	if ( profileStore != null ) 
+	    profileStore.save( this, true );
 	while ( freqMDefault<freqM && errorWeight[freqMDefault+1]>100 )
 	    freqMDefault++;
 
@@ -2041,10 +7599,6 @@ class BTCMiner implements MsgObj  {
         rpcpassw[0] = null;
 
 	try {
-// init USB stuff
-	    LibusbJava.usb_init();
-
-	    
 // scan the command line arguments
     	    for (int i=0; i<args.length; i++ ) {
 	        if ( args[i].equals("-d") ) {
@@ -2081,6 +7635,73 @@ class BTCMiner implements MsgObj  {
 			throw new ParameterException("Error: File name expected after `-l2': "+e.getLocalizedMessage() );
 		    }
 		}
+		else if ( args[i].equals("-blb") ) {
+		    i++;
+		    if (i>=args.length) {
+			throw new ParameterException("Error: File name expected after `-blb'");
+		    }
+		    try {
+			blkRecordFile = new DataOutputStream ( new BufferedOutputStream ( new FileOutputStream ( args[i], true ) ) );
+		    } 
+		    catch (Exception e) {
+			throw new ParameterException("Error: File name expected after `-blb': "+e.getLocalizedMessage() );
+		    }
+		}
+		else if ( args[i].equals("-tr") ) {
+		    i++;
+		    if (i>=args.length) {
+			throw new ParameterException("Error: File name expected after `-tr'");
+		    }
+		    try {
+			traceFile = new DataOutputStream ( new BufferedOutputStream ( new FileOutputStream ( args[i] ) ) );
+		    } 
+		    catch (Exception e) {
+			throw new ParameterException("Error: File name expected after `-tr': "+e.getLocalizedMessage() );
+		    }
+		}
+		else if ( args[i].equals("-replay") ) {
+		    i++;
+		    if (i>=args.length) {
+			throw new ParameterException("Error: File name expected after `-replay'");
+		    }
+		    TraceReplay.fileName = args[i];
+		}
+		else if ( args[i].equals("-rs") ) {
+		    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+			TraceReplay.speed = Double.parseDouble( args[i] );
+			if ( TraceReplay.speed <= 0 ) throw new Exception();
+		    } 
+		    catch (Exception e) {
+			throw new ParameterException("Positive number expected after -rs");
+		    }
+		}
+		else if ( args[i].equals("-fp") ) {
+		    i++;
+		    if (i>=args.length) {
+			throw new ParameterException("Error: File name expected after `-fp'");
+		    }
+		    try {
+			profileStore = new FreqProfileStore( args[i] );
+		    } 
+		    catch (Exception e) {
+			throw new ParameterException("Error: Cannot open frequency profile store `" + args[i] + "': "+e.getLocalizedMessage() );
+		    }
+		}
+		else if ( args[i].equals("-pr") ) {
+		    i++;
+		    if (i>=args.length) {
+			throw new ParameterException("Error: File name expected after `-pr'");
+		    }
+		    try {
+			WorkRecord.print( args[i] );
+		    } 
+		    catch (Exception e) {
+			System.err.println("Error reading `" + args[i] + "': "+e.getLocalizedMessage() );
+		    }
+		    System.exit(0);
+		}
 		else if ( args[i].equals("-bl") ) {
 		    i++;
 		    if (i>=args.length) {
@@ -2208,10 +7829,10 @@ class BTCMiner implements MsgObj  {
 			if (i>=args.length) throw new Exception();
 			if ( args[i].length() < 1 ) throw new Exception();
 			mode = Character.toLowerCase( args[i].charAt(0) );
-			if ( mode != 's' && mode != 't'  && mode != 'p' && mode != 'c' ) throw new Exception();
+			if ( mode != 's' && mode != 't'  && mode != 'p' && mode != 'c' && mode != 'b' ) throw new Exception();
 		    } 
 		    catch (Exception e) {
-		        throw new ParameterException("s|t|p|c expected after -m");
+			throw new ParameterException("s|t|p|c|b expected after -m");
 		    }
 		}
 		else if ( args[i].equals("-s") ) {
@@ -2240,6 +7861,91 @@ class BTCMiner implements MsgObj  {
 		        System.err.println(ParameterException.helpMsg);
 	    	        System.exit(0);
 		}
+		else if ( args[i].equals("-sim") ) {
+		    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+			BTCMinerCluster.simDevices = Integer.parseInt( args[i] );
+		    } 
+		    catch (Exception e) {
+			throw new ParameterException("Number expected after -sim");
+		    }
+		}
+		else if ( args[i].equals("-wq") ) {
+		    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+			WorkQueue.prefetch = Integer.parseInt( args[i] );
+		    } 
+		    catch (Exception e) {
+			throw new ParameterException("Number expected after -wq");
+		    }
+		}
+		else if ( args[i].equals("-rn") ) {
+		    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+			maxRollNTime = Integer.parseInt( args[i] );
+		    } 
+		    catch (Exception e) {
+			throw new ParameterException("Number expected after -rn");
+		    }
+		}
+		else if ( args[i].equals("-lb") ) {
+		    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+			String[] sa = args[i].split(",");
+			if ( sa.length > maxRpcCount ) throw new Exception();
+			for ( int j=0; j<sa.length; j++ ) {
+			    WorkSource.weight[j] = Double.parseDouble( sa[j].trim() );
+			    if ( WorkSource.weight[j] < 0 ) throw new Exception();
+			}
+			WorkSource.balance = true;
+		    } 
+		    catch (Exception e) {
+			throw new ParameterException("Comma separated list of weights expected after -lb");
+		    }
+		}
+		else if ( args[i].equals("-fc") ) {
+		    i++;
+		    if ( i>=args.length || ! (args[i].equals("legacy") || args[i].equals("model")) ) 
+			throw new ParameterException("`legacy' or `model' expected after -fc");
+		    modelFreqControl = args[i].equals("model");
+		}
+		else if ( args[i].equals("-bs") ) {
+		    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+			WorkBroker.maxBatch = Integer.parseInt( args[i] );
+		    } 
+		    catch (Exception e) {
+			throw new ParameterException("Number expected after -bs");
+		    }
+		}
+		else if ( args[i].equals("-simlat") ) {
+		    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+			SimulatedMinerDevice.usbLatency = Long.parseLong( args[i] );
+		    } 
+		    catch (Exception e) {
+			throw new ParameterException("Number expected after -simlat");
+		    }
+		}
+		else if ( args[i].equals("-mp") ) {
+		    i++;
+		    try {
+			if (i>=args.length) throw new Exception();
+			MetricsServer.port = Integer.parseInt( args[i] );
+		    } 
+		    catch (Exception e) {
+			throw new ParameterException("Number expected after -mp");
+		    }
+		}
+		else if ( args[i].equals("-tpd") ) {
+		    BTCMinerCluster.threadPerDevice = true;
+		} 
 	        else if ( args[i].equals("-n") ) {
 	    	    i++;
 		    try {
@@ -2295,6 +8001,20 @@ class BTCMiner implements MsgObj  {
 	    if ( mode != 'c' && filterSN != null)
 		filterSN = checkSnString(filterSN);
 	    
+	    if ( mode == 'b' ) {
+		new BTCMinerBenchmark().run();
+		System.exit(0);
+	    }
+
+	    if ( TraceReplay.fileName != null ) {
+		mode = 'c';
+		TraceReplay.start();
+	    }
+
+// init USB stuff
+	    if ( BTCMinerCluster.simDevices <= 0 && TraceReplay.fileName == null )
+		LibusbJava.usb_init();
+
 	    if ( mode != 't' && mode != 'p' ) {
 		if ( rpcuser[0] == null ) {
 		    System.out.print("Enter RPC user name: ");
@@ -2314,7 +8034,15 @@ class BTCMiner implements MsgObj  {
 	    }); */
 	    
 
-	    if ( mode == 's' || mode == 't' ) {
+	    if ( mode == 's' && BTCMinerCluster.simDevices > 0 ) {
+		Vector<BTCMiner> v = new Vector<BTCMiner>();
+		for ( int i=0; i<BTCMinerCluster.simDevices; i++ )
+		    v.add( new BTCMiner( new SimulatedMinerDevice(), verbose ) );
+		System.out.println("Press Ctrl-C for exit\n");
+		MetricsServer.start( v );
+		new PollLoop(v).run(); 
+	    }
+	    else if ( mode == 's' || mode == 't' ) {
 		if ( devNum < 0 )
 		    devNum = 0;
 	
@@ -2345,7 +8073,7 @@ class BTCMiner implements MsgObj  {
 			miner.getNoncesInt();
 
     			for ( int j=0; j<miner.numNonces; j++ ) {
-	    		    System.out.println( i +"-" + j + ":  " + intToHexStr(miner.nonce[j]) + "    " + miner.checkNonce(miner.nonce[j],miner.hash7[j])  + "   " +  miner.overflowCount + "    " + intToHexStr(miner.goldenNonce[j*(1+miner.extraSolutions)]) + "      "  + intToHexStr( miner.getHash( miner.goldenNonce[j]) ) );
+	    		    System.out.println( i +"-" + j + ":  " + intToHexStr(miner.nonce[j]) + "    " + miner.checkNonce(miner.nonce[j],miner.hash7[j])  + "   " +  miner.overflows.get() + "    " + intToHexStr(miner.goldenNonce[j*(1+miner.extraSolutions)]) + "      "  + intToHexStr( miner.getHash( miner.goldenNonce[j]) ) );
 	    		}
 		    } 
 		}
@@ -2358,6 +8086,7 @@ class BTCMiner implements MsgObj  {
 		    if ( miner.ztex().numberOfFpgas()>1 ) 
 			System.out.println("A multi-FPGA board is detected. Use the cluster mode for additional statistics.");
 		    System.out.println("Disconnect device or press Ctrl-C for exit\n");
+		    MetricsServer.start( v );
 		    new PollLoop(v).run(); 
 		}
 	    }